@@ -0,0 +1,88 @@
+package com.customautosys.saf_mediastore;
+
+import android.graphics.Bitmap;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Mutable bitmaps kept between decodes so BitmapFactory can decode into them through inBitmap.
+ * <p>
+ * A batch of photos from the same camera has the same dimensions, so after the first one each
+ * decode reuses a buffer instead of allocating tens of megabytes. The pool is bounded by bytes and
+ * drops the oldest bitmaps first.
+ */
+class BitmapPool {
+    private final List<Bitmap> bitmaps = new ArrayList<>();
+    private final long maxBytes;
+    private long bytes = 0;
+
+    BitmapPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Removes and returns the smallest pooled bitmap that can hold width x height ARGB_8888
+     * pixels, or null if there is none.
+     */
+    public synchronized @Nullable Bitmap get(int width, int height) {
+        long needed = (long) width * height * 4;
+
+        Bitmap best = null;
+        for (Bitmap bitmap : bitmaps) {
+            if (bitmap.getAllocationByteCount() >= needed && (best == null || bitmap.getAllocationByteCount() < best.getAllocationByteCount())) {
+                best = bitmap;
+            }
+        }
+
+        if (best != null) {
+            bitmaps.remove(best);
+            bytes -= best.getAllocationByteCount();
+        }
+
+        return best;
+    }
+
+    /**
+     * Hands a bitmap back. Immutable or oversized bitmaps cannot be reused and are recycled.
+     */
+    public synchronized void put(@Nullable Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+
+        if (!bitmap.isMutable() || bitmap.getAllocationByteCount() > maxBytes) {
+            bitmap.recycle();
+            return;
+        }
+
+        bitmaps.add(bitmap);
+        bytes += bitmap.getAllocationByteCount();
+
+        Iterator<Bitmap> iterator = bitmaps.iterator();
+        while (bytes > maxBytes && iterator.hasNext()) {
+            Bitmap oldest = iterator.next();
+            iterator.remove();
+
+            bytes -= oldest.getAllocationByteCount();
+            oldest.recycle();
+        }
+    }
+
+    public synchronized void clear() {
+        for (Bitmap bitmap : bitmaps) {
+            bitmap.recycle();
+        }
+
+        bitmaps.clear();
+        bytes = 0;
+    }
+
+    public synchronized long size() {
+        return bytes;
+    }
+}
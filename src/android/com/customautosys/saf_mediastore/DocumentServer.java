@@ -0,0 +1,279 @@
+package com.customautosys.saf_mediastore;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+import android.webkit.WebResourceRequest;
+import android.webkit.WebResourceResponse;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Serves documents to the WebView under the app's own origin, at /_saf_/&lt;token&gt;.
+ * <p>
+ * Tokens are random and only valid while registered, so a page can only load the documents the
+ * app handed out a URL for. Single byte ranges are answered with 206 from a positioned file
+ * descriptor, which lets media elements seek without reading the document from the start.
+ */
+class DocumentServer {
+    public static final String PATH_PREFIX = "/_saf_/";
+
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d*)-(\\d*)");
+
+    private final ContentResolver contentResolver;
+    private final String scheme;
+    private final String hostname;
+    private final HashMap<String, Document> documents = new HashMap<>();
+    private final SecureRandom random = new SecureRandom();
+
+    private static class Document {
+        public final Uri uri;
+        public final String type;
+
+        Document(@NonNull Uri uri, @NonNull String type) {
+            this.uri = uri;
+            this.type = type;
+        }
+    }
+
+    /**
+     * Limits a stream to the requested range, the rest of the descriptor is never read.
+     */
+    private static class RangeInputStream extends FilterInputStream {
+        private long remaining;
+
+        RangeInputStream(@NonNull InputStream inputStream, long length) {
+            super(inputStream);
+            remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+
+            int value = super.read();
+            if (value >= 0) {
+                remaining--;
+            }
+
+            return value;
+        }
+
+        @Override
+        public int read(@NonNull byte[] buffer, int offset, int length) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+
+            int read = super.read(buffer, offset, (int) Math.min(length, remaining));
+            if (read > 0) {
+                remaining -= read;
+            }
+
+            return read;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), remaining);
+        }
+    }
+
+    DocumentServer(@NonNull ContentResolver contentResolver, @NonNull String scheme, @NonNull String hostname) {
+        this.contentResolver = contentResolver;
+        this.scheme = scheme;
+        this.hostname = hostname;
+    }
+
+    /**
+     * type is served as given, or as application/octet-stream if unset. It is not looked up from
+     * the provider here, since this runs on the UI thread.
+     */
+    public @NonNull String register(@NonNull Uri uri, @Nullable String type) {
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+
+        StringBuilder token = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            token.append(String.format("%02x", b));
+        }
+
+        synchronized (documents) {
+            documents.put(token.toString(), new Document(uri, type == null || type.equals("") ? "application/octet-stream" : type));
+        }
+
+        return scheme + "://" + hostname + PATH_PREFIX + token;
+    }
+
+    /**
+     * Accepts either a URL returned by {@link #register} or its token.
+     */
+    public boolean revoke(@NonNull String url) {
+        String token = url.substring(url.lastIndexOf('/') + 1);
+
+        synchronized (documents) {
+            return documents.remove(token) != null;
+        }
+    }
+
+    public void revokeAll() {
+        synchronized (documents) {
+            documents.clear();
+        }
+    }
+
+    /**
+     * Returns null for requests that are not for this server, so the WebView client can handle them.
+     */
+    public @Nullable WebResourceResponse intercept(@NonNull WebResourceRequest request) {
+        Uri url = request.getUrl();
+        String path = url.getPath();
+
+        if (
+                !scheme.equalsIgnoreCase(url.getScheme()) ||
+                        !hostname.equalsIgnoreCase(url.getHost()) ||
+                        path == null ||
+                        !path.startsWith(PATH_PREFIX)
+        ) {
+            return null;
+        }
+
+        Document document;
+        synchronized (documents) {
+            document = documents.get(path.substring(PATH_PREFIX.length()));
+        }
+
+        if (document == null) {
+            return error(404, "Not Found");
+        }
+
+        String method = request.getMethod();
+        if (!"GET".equalsIgnoreCase(method) && !"HEAD".equalsIgnoreCase(method)) {
+            return error(405, "Method Not Allowed");
+        }
+
+        try {
+            return serve(document, header(request, "Range"));
+        } catch (Exception e) {
+            Log.d(getClass().getName(), "could not serve: " + document.uri, e);
+
+            return error(e instanceof SecurityException ? 403 : 404, e instanceof SecurityException ? "Forbidden" : "Not Found");
+        }
+    }
+
+    private @NonNull WebResourceResponse serve(@NonNull Document document, @Nullable String range) throws IOException {
+        ParcelFileDescriptor fileDescriptor = contentResolver.openFileDescriptor(document.uri, "r");
+        if (fileDescriptor == null) {
+            return error(404, "Not Found");
+        }
+
+        long size = fileDescriptor.getStatSize();
+        FileInputStream inputStream = new ParcelFileDescriptor.AutoCloseInputStream(fileDescriptor);
+
+        try {
+            return serve(document, range, inputStream, size);
+        } catch (IOException | RuntimeException e) {
+            // the stream only belongs to the WebView once a response carrying it is returned
+            inputStream.close();
+
+            throw e;
+        }
+    }
+
+    private @NonNull WebResourceResponse serve(@NonNull Document document, @Nullable String range, @NonNull FileInputStream inputStream, long size) throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Cache-Control", "no-cache");
+
+        Matcher matcher = range == null ? null : RANGE.matcher(range.trim());
+
+        // ranges need a seekable descriptor of known size, pipes are served whole
+        if (size < 0 || matcher == null || !matcher.matches()) {
+            if (size >= 0) {
+                headers.put("Accept-Ranges", "bytes");
+                headers.put("Content-Length", String.valueOf(size));
+            }
+
+            return new WebResourceResponse(document.type, null, 200, "OK", headers, inputStream);
+        }
+
+        headers.put("Accept-Ranges", "bytes");
+
+        long start;
+        long end;
+        if (matcher.group(1).equals("")) {
+            // suffix range: the last n bytes
+            if (matcher.group(2).equals("")) {
+                inputStream.close();
+
+                return rangeNotSatisfiable(size, headers);
+            }
+
+            start = Math.max(size - Long.parseLong(matcher.group(2)), 0);
+            end = size - 1;
+        } else {
+            start = Long.parseLong(matcher.group(1));
+            end = matcher.group(2).equals("") ? size - 1 : Math.min(Long.parseLong(matcher.group(2)), size - 1);
+        }
+
+        if (start >= size || start > end) {
+            inputStream.close();
+
+            return rangeNotSatisfiable(size, headers);
+        }
+
+        inputStream.getChannel().position(start);
+
+        headers.put("Content-Range", "bytes " + start + "-" + end + "/" + size);
+        headers.put("Content-Length", String.valueOf(end - start + 1));
+
+        return new WebResourceResponse(
+                document.type,
+                null,
+                206,
+                "Partial Content",
+                headers,
+                new RangeInputStream(inputStream, end - start + 1)
+        );
+    }
+
+    private static @NonNull WebResourceResponse rangeNotSatisfiable(long size, @NonNull Map<String, String> headers) {
+        headers.put("Content-Range", "bytes */" + size);
+
+        return new WebResourceResponse("text/plain", null, 416, "Range Not Satisfiable", headers, new ByteArrayInputStream(new byte[0]));
+    }
+
+    private static @NonNull WebResourceResponse error(int status, @NonNull String reason) {
+        return new WebResourceResponse("text/plain", null, status, reason, new HashMap<String, String>(), new ByteArrayInputStream(new byte[0]));
+    }
+
+    private static @Nullable String header(@NonNull WebResourceRequest request, @NonNull String name) {
+        Map<String, String> headers = request.getRequestHeaders();
+        if (headers == null) {
+            return null;
+        }
+
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (header.getKey() != null && header.getKey().toLowerCase(Locale.ROOT).equals(name.toLowerCase(Locale.ROOT))) {
+                return header.getValue();
+            }
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,134 @@
+package com.customautosys.saf_mediastore;
+
+import android.graphics.Bitmap;
+import android.net.http.SslError;
+import android.webkit.ClientCertRequest;
+import android.webkit.HttpAuthHandler;
+import android.webkit.RenderProcessGoneDetail;
+import android.webkit.SslErrorHandler;
+import android.webkit.WebResourceError;
+import android.webkit.WebResourceRequest;
+import android.webkit.WebResourceResponse;
+import android.webkit.WebView;
+
+import androidx.annotation.NonNull;
+
+import org.apache.cordova.AuthenticationToken;
+import org.apache.cordova.engine.SystemWebViewClient;
+import org.apache.cordova.engine.SystemWebViewEngine;
+
+/**
+ * Answers {@link DocumentServer} requests and hands everything else to the client that was
+ * installed before it.
+ * <p>
+ * SystemWebView only accepts a SystemWebViewClient, so this extends one, but none of its own state
+ * is used: every callback and the authentication tokens go to the previous client. Its loading
+ * state, pending history clear and tokens are kept, including those of a client another plugin
+ * had installed. A client installed after this one replaces it like any other.
+ */
+class DocumentWebViewClient extends SystemWebViewClient {
+    private final SystemWebViewClient delegate;
+    private final DocumentServer server;
+
+    DocumentWebViewClient(@NonNull SystemWebViewEngine engine, @NonNull SystemWebViewClient delegate, @NonNull DocumentServer server) {
+        super(engine);
+
+        this.delegate = delegate;
+        this.server = server;
+    }
+
+    @Override
+    public WebResourceResponse shouldInterceptRequest(WebView view, WebResourceRequest request) {
+        WebResourceResponse response = server.intercept(request);
+
+        return response != null ? response : delegate.shouldInterceptRequest(view, request);
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public WebResourceResponse shouldInterceptRequest(WebView view, String url) {
+        return delegate.shouldInterceptRequest(view, url);
+    }
+
+    @Override
+    public boolean shouldOverrideUrlLoading(WebView view, WebResourceRequest request) {
+        return delegate.shouldOverrideUrlLoading(view, request);
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public boolean shouldOverrideUrlLoading(WebView view, String url) {
+        return delegate.shouldOverrideUrlLoading(view, url);
+    }
+
+    @Override
+    public void onPageStarted(WebView view, String url, Bitmap favicon) {
+        delegate.onPageStarted(view, url, favicon);
+    }
+
+    @Override
+    public void onPageFinished(WebView view, String url) {
+        delegate.onPageFinished(view, url);
+    }
+
+    @Override
+    public void doUpdateVisitedHistory(WebView view, String url, boolean isReload) {
+        delegate.doUpdateVisitedHistory(view, url, isReload);
+    }
+
+    @Override
+    public void onReceivedError(WebView view, WebResourceRequest request, WebResourceError error) {
+        delegate.onReceivedError(view, request, error);
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public void onReceivedError(WebView view, int errorCode, String description, String failingUrl) {
+        delegate.onReceivedError(view, errorCode, description, failingUrl);
+    }
+
+    @Override
+    public void onReceivedHttpError(WebView view, WebResourceRequest request, WebResourceResponse errorResponse) {
+        delegate.onReceivedHttpError(view, request, errorResponse);
+    }
+
+    @Override
+    public void onReceivedSslError(WebView view, SslErrorHandler handler, SslError error) {
+        delegate.onReceivedSslError(view, handler, error);
+    }
+
+    @Override
+    public void onReceivedHttpAuthRequest(WebView view, HttpAuthHandler handler, String host, String realm) {
+        delegate.onReceivedHttpAuthRequest(view, handler, host, realm);
+    }
+
+    @Override
+    public void onReceivedClientCertRequest(WebView view, ClientCertRequest request) {
+        delegate.onReceivedClientCertRequest(view, request);
+    }
+
+    @Override
+    public boolean onRenderProcessGone(WebView view, RenderProcessGoneDetail detail) {
+        return delegate.onRenderProcessGone(view, detail);
+    }
+
+    @Override
+    public void setAuthenticationToken(AuthenticationToken authenticationToken, String host, String realm) {
+        delegate.setAuthenticationToken(authenticationToken, host, realm);
+    }
+
+    @Override
+    public AuthenticationToken removeAuthenticationToken(String host, String realm) {
+        return delegate.removeAuthenticationToken(host, realm);
+    }
+
+    @Override
+    public AuthenticationToken getAuthenticationToken(String host, String realm) {
+        return delegate.getAuthenticationToken(host, realm);
+    }
+
+    @Override
+    public void clearAuthenticationTokens() {
+        delegate.clearAuthenticationTokens();
+    }
+}
@@ -0,0 +1,347 @@
+package com.customautosys.saf_mediastore;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+
+/**
+ * Downscales and re-encodes an image natively: params.transform of writeFile/writeMedia and
+ * readImage.
+ * <p>
+ * The image is decoded subsampled to the smallest power of two that still covers maxWidth x
+ * maxHeight, scaled the rest of the way and compressed straight into the output stream. Without
+ * keepExif the EXIF orientation is applied to the pixels, since the metadata that carried it is
+ * dropped; with keepExif the pixels stay as they are and the orientation is copied along with the
+ * other tags.
+ */
+class ImageTransform {
+    /**
+     * Tags copied with keepExif. ExifInterface cannot enumerate tags, and dimension or thumbnail
+     * tags would describe the original rather than the re-encoded image.
+     */
+    private static final String[] EXIF_TAGS = {
+            ExifInterface.TAG_ORIENTATION,
+            ExifInterface.TAG_DATETIME,
+            ExifInterface.TAG_DATETIME_ORIGINAL,
+            ExifInterface.TAG_DATETIME_DIGITIZED,
+            ExifInterface.TAG_OFFSET_TIME,
+            ExifInterface.TAG_OFFSET_TIME_ORIGINAL,
+            ExifInterface.TAG_OFFSET_TIME_DIGITIZED,
+            ExifInterface.TAG_SUBSEC_TIME,
+            ExifInterface.TAG_SUBSEC_TIME_ORIGINAL,
+            ExifInterface.TAG_SUBSEC_TIME_DIGITIZED,
+            ExifInterface.TAG_MAKE,
+            ExifInterface.TAG_MODEL,
+            ExifInterface.TAG_SOFTWARE,
+            ExifInterface.TAG_ARTIST,
+            ExifInterface.TAG_COPYRIGHT,
+            ExifInterface.TAG_IMAGE_DESCRIPTION,
+            ExifInterface.TAG_USER_COMMENT,
+            ExifInterface.TAG_EXPOSURE_TIME,
+            ExifInterface.TAG_F_NUMBER,
+            ExifInterface.TAG_PHOTOGRAPHIC_SENSITIVITY,
+            ExifInterface.TAG_FOCAL_LENGTH,
+            ExifInterface.TAG_FOCAL_LENGTH_IN_35MM_FILM,
+            ExifInterface.TAG_FLASH,
+            ExifInterface.TAG_WHITE_BALANCE,
+            ExifInterface.TAG_EXPOSURE_BIAS_VALUE,
+            ExifInterface.TAG_METERING_MODE,
+            ExifInterface.TAG_GPS_LATITUDE,
+            ExifInterface.TAG_GPS_LATITUDE_REF,
+            ExifInterface.TAG_GPS_LONGITUDE,
+            ExifInterface.TAG_GPS_LONGITUDE_REF,
+            ExifInterface.TAG_GPS_ALTITUDE,
+            ExifInterface.TAG_GPS_ALTITUDE_REF,
+            ExifInterface.TAG_GPS_TIMESTAMP,
+            ExifInterface.TAG_GPS_DATESTAMP,
+            ExifInterface.TAG_GPS_IMG_DIRECTION,
+            ExifInterface.TAG_GPS_IMG_DIRECTION_REF
+    };
+
+    public interface Source {
+        /**
+         * Opens the image from the start. It is opened once for the header, once for EXIF and
+         * once for the pixels.
+         */
+        @NonNull InputStream open() throws IOException;
+    }
+
+    /**
+     * What was written, and the EXIF of the source if keepExif is set.
+     */
+    public static class Image {
+        public final int width;
+        public final int height;
+        public final @Nullable ExifInterface exif;
+
+        Image(int width, int height, @Nullable ExifInterface exif) {
+            this.width = width;
+            this.height = height;
+            this.exif = exif;
+        }
+    }
+
+    public final int maxWidth;
+    public final int maxHeight;
+    public final String format;
+    public final int quality;
+    public final boolean keepExif;
+    private final Bitmap.CompressFormat compressFormat;
+
+    private ImageTransform(int maxWidth, int maxHeight, @NonNull String format, @NonNull Bitmap.CompressFormat compressFormat, int quality, boolean keepExif) {
+        this.maxWidth = maxWidth;
+        this.maxHeight = maxHeight;
+        this.format = format;
+        this.compressFormat = compressFormat;
+        this.quality = quality;
+        this.keepExif = keepExif;
+    }
+
+    /**
+     * Returns null if params is null. Without params.format the format follows mimeType, and
+     * falls back to jpeg.
+     *
+     * @throws IllegalArgumentException for an unknown format
+     */
+    public static @Nullable ImageTransform parse(@Nullable JSONObject params, @Nullable String mimeType) {
+        if (params == null) {
+            return null;
+        }
+
+        String format = params.optString("format").trim().toLowerCase(Locale.ROOT);
+        if (format.equals("") && mimeType != null && mimeType.startsWith("image/")) {
+            format = mimeType.substring("image/".length());
+        }
+
+        Bitmap.CompressFormat compressFormat;
+        switch (format) {
+            case "png":
+                compressFormat = Bitmap.CompressFormat.PNG;
+                break;
+            case "webp":
+                compressFormat = webp();
+                break;
+            case "jpeg":
+            case "jpg":
+                format = "jpeg";
+                compressFormat = Bitmap.CompressFormat.JPEG;
+                break;
+            default:
+                if (!params.optString("format").trim().equals("")) {
+                    throw new IllegalArgumentException("unknown format: " + format);
+                }
+
+                format = "jpeg";
+                compressFormat = Bitmap.CompressFormat.JPEG;
+        }
+
+        return new ImageTransform(
+                Math.max(params.optInt("maxWidth", 0), 0),
+                Math.max(params.optInt("maxHeight", 0), 0),
+                format,
+                compressFormat,
+                Math.min(Math.max(params.optInt("quality", 90), 0), 100),
+                params.optBoolean("keepExif")
+        );
+    }
+
+    /**
+     * Lossy WebP. WEBP_LOSSY only exists from API 30; before that WEBP is lossy below quality 100.
+     */
+    @SuppressWarnings("deprecation")
+    static @NonNull Bitmap.CompressFormat webp() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.R ? Bitmap.CompressFormat.WEBP_LOSSY : Bitmap.CompressFormat.WEBP;
+    }
+
+    public @NonNull String mimeType() {
+        return "image/" + format;
+    }
+
+    /**
+     * Decodes source, scales it to fit and encodes it into outputStream. Decoded bitmaps are
+     * borrowed from and returned to pool.
+     */
+    public @NonNull Image apply(@NonNull Source source, @NonNull OutputStream outputStream, @NonNull BitmapPool pool, @Nullable CancellationSignal signal) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+
+        try (InputStream inputStream = source.open()) {
+            BitmapFactory.decodeStream(inputStream, null, options);
+        }
+
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new IOException("not a supported image");
+        }
+
+        ExifInterface exif = null;
+        int orientation = ExifInterface.ORIENTATION_NORMAL;
+        try (InputStream inputStream = source.open()) {
+            exif = new ExifInterface(inputStream);
+            orientation = exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+        } catch (IOException e) {
+            Log.d(ImageTransform.class.getName(), "no EXIF: " + e.getLocalizedMessage());
+        }
+
+        boolean transposed = orientation == ExifInterface.ORIENTATION_TRANSPOSE ||
+                orientation == ExifInterface.ORIENTATION_ROTATE_90 ||
+                orientation == ExifInterface.ORIENTATION_TRANSVERSE ||
+                orientation == ExifInterface.ORIENTATION_ROTATE_270;
+
+        // the limits apply to the image as displayed
+        int width = transposed ? options.outHeight : options.outWidth;
+        int height = transposed ? options.outWidth : options.outHeight;
+        float scale = Math.min(
+                maxWidth > 0 ? (float) maxWidth / width : 1,
+                maxHeight > 0 ? (float) maxHeight / height : 1
+        );
+
+        int targetWidth = Math.max(Math.round(width * Math.min(scale, 1)), 1);
+        int targetHeight = Math.max(Math.round(height * Math.min(scale, 1)), 1);
+
+        int sampleSize = 1;
+        while (width / (sampleSize * 2) >= targetWidth && height / (sampleSize * 2) >= targetHeight) {
+            sampleSize *= 2;
+        }
+
+        if (signal != null) {
+            signal.throwIfCanceled();
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        options.inMutable = true;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        options.inBitmap = pool.get(
+                (options.outWidth + sampleSize - 1) / sampleSize,
+                (options.outHeight + sampleSize - 1) / sampleSize
+        );
+
+        Bitmap decoded;
+        try {
+            decoded = decode(source, options);
+        } catch (IllegalArgumentException e) {
+            // the pooled bitmap could not be reused for this image
+            pool.put(options.inBitmap);
+            options.inBitmap = null;
+
+            decoded = decode(source, options);
+        }
+
+        Bitmap bitmap = decoded;
+        try {
+            Matrix matrix = keepExif ? new Matrix() : orientation(orientation);
+            if (keepExif && transposed) {
+                int swap = targetWidth;
+                targetWidth = targetHeight;
+                targetHeight = swap;
+            }
+
+            int decodedWidth = keepExif || !transposed ? decoded.getWidth() : decoded.getHeight();
+            int decodedHeight = keepExif || !transposed ? decoded.getHeight() : decoded.getWidth();
+            if (decodedWidth != targetWidth || decodedHeight != targetHeight) {
+                matrix.postScale((float) targetWidth / decodedWidth, (float) targetHeight / decodedHeight);
+            }
+
+            if (!matrix.isIdentity()) {
+                bitmap = Bitmap.createBitmap(decoded, 0, 0, decoded.getWidth(), decoded.getHeight(), matrix, true);
+            }
+
+            if (signal != null) {
+                signal.throwIfCanceled();
+            }
+
+            if (!bitmap.compress(compressFormat, quality, outputStream)) {
+                throw new IOException("could not encode image as " + format);
+            }
+
+            return new Image(bitmap.getWidth(), bitmap.getHeight(), keepExif ? exif : null);
+        } finally {
+            if (bitmap != decoded) {
+                bitmap.recycle();
+            }
+
+            pool.put(decoded);
+        }
+    }
+
+    /**
+     * Copies the tags kept from the source into target and saves it. target must be a file or a
+     * seekable descriptor opened for reading and writing.
+     */
+    public void saveExif(@NonNull Image image, @NonNull ExifInterface target) throws IOException {
+        if (image.exif == null) {
+            return;
+        }
+
+        for (String tag : EXIF_TAGS) {
+            String value = image.exif.getAttribute(tag);
+            if (value != null) {
+                target.setAttribute(tag, value);
+            }
+        }
+
+        target.setAttribute(ExifInterface.TAG_PIXEL_X_DIMENSION, String.valueOf(image.width));
+        target.setAttribute(ExifInterface.TAG_PIXEL_Y_DIMENSION, String.valueOf(image.height));
+        target.saveAttributes();
+    }
+
+    private static @NonNull Bitmap decode(@NonNull Source source, @NonNull BitmapFactory.Options options) throws IOException {
+        try (InputStream inputStream = source.open()) {
+            Bitmap bitmap = BitmapFactory.decodeStream(inputStream, null, options);
+            if (bitmap == null) {
+                throw new IOException("could not decode image");
+            }
+
+            return bitmap;
+        }
+    }
+
+    /**
+     * The transform that displays an image with the given EXIF orientation upright.
+     */
+    private static @NonNull Matrix orientation(int orientation) {
+        Matrix matrix = new Matrix();
+
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+                matrix.setScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                matrix.setRotate(180);
+                break;
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                matrix.setScale(1, -1);
+                break;
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+                matrix.setRotate(90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                matrix.setRotate(90);
+                break;
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+                matrix.setRotate(-90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                matrix.setRotate(-90);
+                break;
+        }
+
+        return matrix;
+    }
+}
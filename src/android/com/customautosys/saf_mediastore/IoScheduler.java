@@ -0,0 +1,205 @@
+package com.customautosys.saf_mediastore;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded executor owned by the plugin instead of the shared Cordova thread pool.
+ * <p>
+ * Metadata lookups and bulk transfers run on separate pools so a large copy cannot starve small
+ * queries. Tasks submitted with a key (usually the URI they work on) go through one of a fixed set
+ * of striped queues of their lane and run strictly one after another in submission order. Each
+ * lane has its own stripes, so a metadata task never waits behind a bulk transfer that happens to
+ * hash to the same stripe.
+ *
+ * @noinspection Convert2Lambda
+ */
+class IoScheduler {
+    public enum Lane {
+        metadata,
+        bulk
+    }
+
+    private static final int STRIPES = 32;
+
+    private final LaneExecutor[] lanes = new LaneExecutor[Lane.values().length];
+    private final Stripe[][] stripes = new Stripe[Lane.values().length][STRIPES];
+
+    private static class LaneExecutor {
+        public final ThreadPoolExecutor executor;
+        public final AtomicInteger waiting = new AtomicInteger();
+        public final AtomicLong started = new AtomicLong();
+        public final AtomicLong totalWaitNanos = new AtomicLong();
+        public final AtomicLong maxWaitNanos = new AtomicLong();
+
+        LaneExecutor(@NonNull final String name, int threads) {
+            executor = new ThreadPoolExecutor(
+                    threads,
+                    threads,
+                    30,
+                    TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        private final AtomicInteger count = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(@NonNull Runnable runnable) {
+                            return new Thread(runnable, "SafMediastore-" + name + "-" + count.incrementAndGet());
+                        }
+                    }
+            );
+            executor.allowCoreThreadTimeOut(true);
+        }
+    }
+
+    private static class Task {
+        public final Lane lane;
+        public final Runnable runnable;
+        public final long queuedAt = System.nanoTime();
+
+        Task(@NonNull Lane lane, @NonNull Runnable runnable) {
+            this.lane = lane;
+            this.runnable = runnable;
+        }
+    }
+
+    private static class Stripe {
+        public final ArrayDeque<Task> queue = new ArrayDeque<>();
+        public boolean running = false;
+    }
+
+    IoScheduler(int bulkThreads, int metadataThreads) {
+        lanes[Lane.metadata.ordinal()] = new LaneExecutor(Lane.metadata.name(), Math.max(metadataThreads, 1));
+        lanes[Lane.bulk.ordinal()] = new LaneExecutor(Lane.bulk.name(), Math.max(bulkThreads, 1));
+
+        for (Stripe[] laneStripes : stripes) {
+            for (int i = 0; i < STRIPES; i++) {
+                laneStripes[i] = new Stripe();
+            }
+        }
+    }
+
+    /**
+     * Runs runnable on the given lane. Tasks of the same lane sharing a non-null key never run
+     * concurrently and start in the order they were submitted.
+     */
+    public void execute(@NonNull Lane lane, @Nullable String key, @NonNull Runnable runnable) {
+        Task task = new Task(lane, runnable);
+        lanes[lane.ordinal()].waiting.incrementAndGet();
+
+        if (key == null) {
+            submit(task, null);
+            return;
+        }
+
+        Stripe stripe = stripes[lane.ordinal()][(key.hashCode() & 0x7fffffff) % STRIPES];
+        synchronized (stripe) {
+            if (stripe.running) {
+                stripe.queue.add(task);
+                return;
+            }
+
+            stripe.running = true;
+        }
+
+        submit(task, stripe);
+    }
+
+    public void configure(int bulkThreads, int metadataThreads) {
+        resize(lanes[Lane.bulk.ordinal()].executor, Math.max(bulkThreads, 1));
+        resize(lanes[Lane.metadata.ordinal()].executor, Math.max(metadataThreads, 1));
+    }
+
+    public @NonNull JSONObject stats() throws JSONException {
+        JSONObject result = new JSONObject();
+
+        for (Lane lane : Lane.values()) {
+            LaneExecutor executor = lanes[lane.ordinal()];
+            long started = executor.started.get();
+
+            JSONObject stats = new JSONObject();
+            stats.put("threads", executor.executor.getMaximumPoolSize());
+            stats.put("active", executor.executor.getActiveCount());
+            stats.put("queued", executor.waiting.get());
+            stats.put("started", started);
+            stats.put("averageWaitMs", started == 0 ? 0 : executor.totalWaitNanos.get() / started / 1e6);
+            stats.put("maxWaitMs", executor.maxWaitNanos.get() / 1e6);
+
+            result.put(lane.name(), stats);
+        }
+
+        return result;
+    }
+
+    public void shutdown() {
+        for (LaneExecutor executor : lanes) {
+            executor.executor.shutdown();
+        }
+    }
+
+    private void submit(@NonNull final Task task, @Nullable final Stripe stripe) {
+        final LaneExecutor executor = lanes[task.lane.ordinal()];
+
+        executor.executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long wait = System.nanoTime() - task.queuedAt;
+                executor.waiting.decrementAndGet();
+                executor.started.incrementAndGet();
+                executor.totalWaitNanos.addAndGet(wait);
+
+                long max;
+                do {
+                    max = executor.maxWaitNanos.get();
+                } while (wait > max && !executor.maxWaitNanos.compareAndSet(max, wait));
+
+                try {
+                    task.runnable.run();
+                } catch (Throwable t) {
+                    Log.w(IoScheduler.class.getName(), t.getLocalizedMessage(), t);
+                } finally {
+                    if (stripe != null) {
+                        next(stripe);
+                    }
+                }
+            }
+        });
+    }
+
+    private void next(@NonNull Stripe stripe) {
+        Task next;
+        synchronized (stripe) {
+            next = stripe.queue.poll();
+
+            if (next == null) {
+                stripe.running = false;
+                return;
+            }
+        }
+
+        submit(next, stripe);
+    }
+
+    private static void resize(@NonNull ThreadPoolExecutor executor, int threads) {
+        if (threads > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(threads);
+            executor.setCorePoolSize(threads);
+        } else {
+            executor.setCorePoolSize(threads);
+            executor.setMaximumPoolSize(threads);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.customautosys.saf_mediastore;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Extracted media metadata, persisted in a small SQLite database in the no-backup directory.
+ * <p>
+ * Like {@link ThumbnailCache}, keys contain the document's lastModified and size, so a changed
+ * file simply misses. Entries are stamped on every hit and the least recently used ones are
+ * deleted once there are more than maxEntries.
+ */
+class MetadataCache extends SQLiteOpenHelper {
+    private static final String TABLE = "metadata";
+
+    private final int maxEntries;
+    private int puts = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    MetadataCache(@NonNull Context context, int maxEntries) {
+        // version 2 added mirrored to images
+        super(context, context.getNoBackupFilesDir() + "/saf_mediastore_metadata.db", null, 2);
+
+        this.maxEntries = Math.max(maxEntries, 1);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE + " (key TEXT PRIMARY KEY, value TEXT NOT NULL, accessed INTEGER NOT NULL)");
+        db.execSQL("CREATE INDEX " + TABLE + "_accessed ON " + TABLE + " (accessed)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // a cache: start over rather than migrate
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE);
+        onCreate(db);
+    }
+
+    public @Nullable JSONObject get(@NonNull String key) {
+        SQLiteDatabase db = getWritableDatabase();
+
+        String value = null;
+        try (Cursor cursor = db.query(TABLE, new String[]{"value"}, "key = ?", new String[]{key}, null, null, null)) {
+            if (cursor.moveToFirst()) {
+                value = cursor.getString(0);
+            }
+        }
+
+        synchronized (this) {
+            if (value == null) {
+                misses++;
+                return null;
+            }
+
+            hits++;
+        }
+
+        ContentValues values = new ContentValues();
+        values.put("accessed", System.currentTimeMillis());
+        db.update(TABLE, values, "key = ?", new String[]{key});
+
+        try {
+            return new JSONObject(value);
+        } catch (JSONException e) {
+            Log.d(MetadataCache.class.getName(), e.getLocalizedMessage(), e);
+
+            db.delete(TABLE, "key = ?", new String[]{key});
+            return null;
+        }
+    }
+
+    public void put(@NonNull String key, @NonNull JSONObject metadata) {
+        SQLiteDatabase db = getWritableDatabase();
+
+        ContentValues values = new ContentValues();
+        values.put("key", key);
+        values.put("value", metadata.toString());
+        values.put("accessed", System.currentTimeMillis());
+        db.insertWithOnConflict(TABLE, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+
+        // counting rows on every put would cost more than the insert, trim every few hundred instead
+        synchronized (this) {
+            if (++puts < 256) {
+                return;
+            }
+
+            puts = 0;
+        }
+
+        trim(db);
+    }
+
+    public @NonNull JSONObject stats() throws JSONException {
+        long entries;
+        try (Cursor cursor = getReadableDatabase().rawQuery("SELECT COUNT(*) FROM " + TABLE, null)) {
+            entries = cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        }
+
+        JSONObject result = new JSONObject();
+        synchronized (this) {
+            result.put("hits", hits);
+            result.put("misses", misses);
+        }
+        result.put("entries", entries);
+        result.put("maxEntries", maxEntries);
+
+        return result;
+    }
+
+    public void clear() {
+        getWritableDatabase().delete(TABLE, null, null);
+
+        synchronized (this) {
+            hits = 0;
+            misses = 0;
+        }
+    }
+
+    /**
+     * Deletes the least recently used entries down to 90% of maxEntries, so a full cache is not
+     * trimmed again right away.
+     */
+    private void trim(@NonNull SQLiteDatabase db) {
+        try (Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM " + TABLE, null)) {
+            if (!cursor.moveToFirst() || cursor.getLong(0) <= maxEntries) {
+                return;
+            }
+        }
+
+        db.execSQL(
+                "DELETE FROM " + TABLE + " WHERE key IN (SELECT key FROM " + TABLE + " ORDER BY accessed DESC LIMIT -1 OFFSET ?)",
+                new Object[]{maxEntries / 10 * 9}
+        );
+    }
+}
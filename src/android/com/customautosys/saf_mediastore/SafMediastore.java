@@ -1,20 +1,43 @@
 package com.customautosys.saf_mediastore;
 
 import android.app.Activity;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.Context;
 import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.ImageDecoder;
+import android.graphics.Point;
+import android.media.ExifInterface;
+import android.media.MediaMetadataRetriever;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Bundle;
+import android.os.CancellationSignal;
 import android.os.FileUtils;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.OperationCanceledException;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.provider.DocumentsContract;
 import android.provider.MediaStore;
+import android.provider.OpenableColumns;
 import android.util.Base64;
 import android.util.Base64InputStream;
-import android.util.Base64OutputStream;
 import android.util.Log;
+import android.util.Size;
 import android.webkit.MimeTypeMap;
 import android.webkit.ValueCallback;
+import android.webkit.WebView;
+import android.webkit.WebViewClient;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -25,19 +48,62 @@ import org.apache.cordova.CordovaArgs;
 import org.apache.cordova.CordovaInterface;
 import org.apache.cordova.CordovaPlugin;
 import org.apache.cordova.CordovaWebView;
+import org.apache.cordova.PluginResult;
+import org.apache.cordova.engine.SystemWebViewClient;
+import org.apache.cordova.engine.SystemWebViewEngine;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
 /**
  * @noinspection StringEqualsEmptyString, Convert2Lambda
@@ -45,7 +111,91 @@ import java.util.Map;
 public class SafMediastore extends CordovaPlugin implements ValueCallback<String> {
     private short lastCallbackIndex = 0;
     private final HashMap<Short, CallbackContext> callbackContexts = new HashMap<>();
-    private final HashMap<String, String> saveFileData = new HashMap<>();
+    private final HashMap<String, InputStream> saveFileData = new HashMap<>();
+    private final HashMap<Integer, WriteStream> writeStreams = new HashMap<>();
+    private final HashMap<Integer, ReadStream> readStreams = new HashMap<>();
+    private final AtomicInteger lastStreamHandle = new AtomicInteger();
+    private final HashMap<String, CancellationSignal> operations = new HashMap<>();
+    private final HashMap<Integer, Watch> watches = new HashMap<>();
+    private final DocumentIdCache documentIds = new DocumentIdCache(512);
+    private final HashMap<String, ContentObserver> documentIdObservers = new HashMap<>();
+    private long documentIdHits = 0;
+    private long documentIdMisses = 0;
+
+    private static final int TRANSFER_SLICE = 4 * 1024 * 1024;
+    private static final int HASH_BUFFER_SIZE = 256 * 1024;
+    // some VMs reserve header words in arrays
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+    private static final ThreadLocal<ByteBuffer> HASH_BUFFERS = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(HASH_BUFFER_SIZE);
+        }
+    };
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(@NonNull Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    private static final String[] DOCUMENT_INFO_PROJECTION = new String[]{
+            DocumentsContract.Document.COLUMN_DISPLAY_NAME,
+            DocumentsContract.Document.COLUMN_LAST_MODIFIED,
+            DocumentsContract.Document.COLUMN_FLAGS,
+            DocumentsContract.Document.COLUMN_MIME_TYPE,
+            DocumentsContract.Document.COLUMN_SIZE,
+            DocumentsContract.Document.COLUMN_DOCUMENT_ID
+    };
+    private static final String[] MEDIA_INFO_PROJECTION = new String[]{
+            MediaStore.MediaColumns.DISPLAY_NAME,
+            MediaStore.MediaColumns.DATE_MODIFIED,
+            MediaStore.MediaColumns.MIME_TYPE,
+            MediaStore.MediaColumns.SIZE
+    };
+    private static final String[] OPENABLE_INFO_PROJECTION = new String[]{
+            OpenableColumns.DISPLAY_NAME,
+            OpenableColumns.SIZE
+    };
+    private static final String[] LIST_COLUMNS = new String[]{"documentId", "name", "type", "size", "lastModified", "flags"};
+    private static final String[] LIST_PROJECTION = new String[]{
+            DocumentsContract.Document.COLUMN_DOCUMENT_ID,
+            DocumentsContract.Document.COLUMN_DISPLAY_NAME,
+            DocumentsContract.Document.COLUMN_MIME_TYPE,
+            DocumentsContract.Document.COLUMN_SIZE,
+            DocumentsContract.Document.COLUMN_LAST_MODIFIED,
+            DocumentsContract.Document.COLUMN_FLAGS
+    };
+    private static final String[] MEDIA_COLUMNS = new String[]{"id", "name", "type", "size", "dateModified", "dateAdded", "relativePath", "width", "height", "duration"};
+    private static final String[] MEDIA_PROJECTION = new String[]{
+            MediaStore.MediaColumns._ID,
+            MediaStore.MediaColumns.DISPLAY_NAME,
+            MediaStore.MediaColumns.MIME_TYPE,
+            MediaStore.MediaColumns.SIZE,
+            MediaStore.MediaColumns.DATE_MODIFIED,
+            MediaStore.MediaColumns.DATE_ADDED,
+            MediaStore.MediaColumns.RELATIVE_PATH,
+            MediaStore.MediaColumns.WIDTH,
+            MediaStore.MediaColumns.HEIGHT,
+            MediaStore.MediaColumns.DURATION
+    };
+    private static final String[] MEDIA_METADATA_FIELDS = {
+            "width",
+            "height",
+            "duration",
+            "orientation",
+            "mirrored",
+            "dateTaken",
+            "latitude",
+            "longitude"
+    };
+    private static final Pattern ISO_6709 = Pattern.compile("([+-]\\d+(?:\\.\\d+)?)([+-]\\d+(?:\\.\\d+)?)");
+    private IoScheduler scheduler;
+    private ForkJoinPool walkPool;
+    private ThumbnailCache thumbnails;
+    private BitmapPool bitmaps;
+    private MetadataCache metadataCache;
+    private volatile DocumentServer documentServer;
     private CordovaInterface cordovaInterface;
     private CordovaWebView cordovaWebView;
 
@@ -73,10 +223,391 @@ public class SafMediastore extends CordovaPlugin implements ValueCallback<String
         }
     }
 
+    /**
+     * A document that is about to be written, remembering whether this plugin created it so that
+     * an aborted write can be rolled back.
+     */
+    private static class Target {
+        public final Uri uri;
+        public final boolean created;
+        public final boolean media;
+
+        Target(@NonNull Uri uri, boolean created, boolean media) {
+            this.uri = uri;
+            this.created = created;
+            this.media = media;
+        }
+    }
+
+    /**
+     * Maps "treeUri\npath/below/tree" to document IDs, least recently used entries are dropped first.
+     */
+    private static class DocumentIdCache extends LinkedHashMap<String, String> {
+        public final int maxSize;
+
+        DocumentIdCache(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > maxSize;
+        }
+    }
+
+    private static class Child {
+        public final String documentId;
+        public final String mimeType;
+
+        Child(@NonNull String documentId, @Nullable String mimeType) {
+            this.documentId = documentId;
+            this.mimeType = mimeType;
+        }
+
+        public boolean isDirectory() {
+            return DocumentsContract.Document.MIME_TYPE_DIR.equals(mimeType);
+        }
+    }
+
+    /**
+     * A file or folder below the folder being zipped, path relative to it.
+     */
+    private static class TreeFile {
+        public final String documentId;
+        public final String path;
+        public final boolean directory;
+        public final long size;
+        public final long lastModified;
+
+        TreeFile(@NonNull String documentId, @NonNull String path, boolean directory, long size, long lastModified) {
+            this.documentId = documentId;
+            this.path = path;
+            this.directory = directory;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * Counts the bytes read from an archive, so unzip can report progress against its size.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        public long count = 0;
+
+        CountingInputStream(@NonNull InputStream inputStream) {
+            super(inputStream);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int value = super.read();
+            if (value >= 0) {
+                count++;
+            }
+
+            return value;
+        }
+
+        @Override
+        public int read(@NonNull byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                count += read;
+            }
+
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+
+            return skipped;
+        }
+    }
+
+    /**
+     * Shared state of one walkTree call. Matches are collected from all walker threads and sent to
+     * JS in batches. Folders that could not be listed are collected in errors, except the root,
+     * whose failure fails the walk.
+     */
+    private static class Walk {
+        public final Uri treeUri;
+        public final int maxDepth;
+        public final Pattern namePattern;
+        public final String[] mimeTypes;
+        public final long modifiedAfter;
+        public final boolean includeFolders;
+        public final int batchSize;
+        public final CallbackContext callbackContext;
+        public final CancellationSignal signal;
+        public JSONArray batch = new JSONArray();
+        public int count = 0;
+        public int folders = 0;
+        public JSONArray errors = new JSONArray();
+        public String rootError;
+
+        Walk(@NonNull Uri treeUri, int maxDepth, @Nullable Pattern namePattern, @Nullable String[] mimeTypes, long modifiedAfter, boolean includeFolders, int batchSize, @NonNull CallbackContext callbackContext, @NonNull CancellationSignal signal) {
+            this.treeUri = treeUri;
+            this.maxDepth = maxDepth;
+            this.namePattern = namePattern;
+            this.mimeTypes = mimeTypes;
+            this.modifiedAfter = modifiedAfter;
+            this.includeFolders = includeFolders;
+            this.batchSize = batchSize;
+            this.callbackContext = callbackContext;
+            this.signal = signal;
+        }
+
+        public boolean matches(@NonNull String name, @Nullable String type, long lastModified) {
+            if (namePattern != null && !namePattern.matcher(name).matches()) {
+                return false;
+            }
+
+            if (lastModified < modifiedAfter) {
+                return false;
+            }
+
+            if (mimeTypes == null) {
+                return true;
+            }
+
+            if (type == null) {
+                return false;
+            }
+
+            for (String mimeType : mimeTypes) {
+                if (mimeType.endsWith("/*") ? type.startsWith(mimeType.substring(0, mimeType.length() - 1)) : type.equals(mimeType)) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+    }
+
+    private class WalkTask extends RecursiveAction {
+        private final Walk walk;
+        private final String documentId;
+        private final String path;
+        private final int depth;
+
+        WalkTask(@NonNull Walk walk, @NonNull String documentId, @NonNull String path, int depth) {
+            this.walk = walk;
+            this.documentId = documentId;
+            this.path = path;
+            this.depth = depth;
+        }
+
+        @Override
+        protected void compute() {
+            if (walk.signal.isCanceled()) {
+                return;
+            }
+
+            List<WalkTask> folders = new ArrayList<>();
+            String error = null;
+
+            try (
+                    Cursor cursor = cordovaInterface.getContext().getContentResolver().query(
+                            DocumentsContract.buildChildDocumentsUriUsingTree(walk.treeUri, documentId),
+                            LIST_PROJECTION,
+                            null,
+                            null,
+                            null
+                    )
+            ) {
+                if (cursor == null) {
+                    error = "could not list folder";
+                }
+
+                while (cursor != null && cursor.moveToNext() && !walk.signal.isCanceled()) {
+                    String childId = cursor.getString(0);
+                    String name = cursor.getString(1);
+                    String type = cursor.getString(2);
+                    long lastModified = cursor.isNull(4) ? 0 : cursor.getLong(4);
+                    boolean directory = DocumentsContract.Document.MIME_TYPE_DIR.equals(type);
+
+                    if (childId == null || name == null) {
+                        continue;
+                    }
+
+                    if (directory && (walk.maxDepth < 0 || depth < walk.maxDepth)) {
+                        folders.add(new WalkTask(walk, childId, path + name + "/", depth + 1));
+                    }
+
+                    if ((directory && !walk.includeFolders) || !walk.matches(name, type, lastModified)) {
+                        continue;
+                    }
+
+                    JSONObject entry = new JSONObject();
+                    entry.put("uri", DocumentsContract.buildDocumentUriUsingTree(walk.treeUri, childId).toString());
+                    entry.put("documentId", childId);
+                    entry.put("path", path + name);
+                    entry.put("name", name);
+                    entry.put("type", type);
+                    entry.put("size", cursor.isNull(3) ? 0 : cursor.getLong(3));
+                    entry.put("lastModified", lastModified);
+
+                    addWalkEntry(walk, entry);
+                }
+            } catch (Exception e) {
+                Log.d(getClass().getName(), "could not list: " + path, e);
+
+                error = e.getLocalizedMessage() == null ? e.getClass().getName() : e.getLocalizedMessage();
+            }
+
+            synchronized (walk) {
+                walk.folders++;
+
+                if (error != null && depth == 0) {
+                    walk.rootError = error;
+                } else if (error != null) {
+                    try {
+                        JSONObject entry = new JSONObject();
+                        entry.put("path", path);
+                        entry.put("message", error);
+                        walk.errors.put(entry);
+                    } catch (JSONException e) {
+                        Log.d(getClass().getName(), e.getLocalizedMessage(), e);
+                    }
+                }
+            }
+
+            invokeAll(folders);
+        }
+    }
+
+    /**
+     * State of one copy: the signal that cancels it and, if params.progress was set, the progress
+     * reported to JS as keep-callback events at most once per interval.
+     */
+    private class Transfer implements FileUtils.ProgressListener {
+        public final CallbackContext callbackContext;
+        public final CancellationSignal signal;
+        public final boolean progress;
+        public final long interval;
+        public final long startTime = SystemClock.elapsedRealtime();
+        public long totalBytes;
+        public long bytesTransferred = 0;
+        private long lastSent = 0;
+
+        Transfer(@NonNull CallbackContext callbackContext, @NonNull CancellationSignal signal, boolean progress, long totalBytes, long interval) {
+            this.callbackContext = callbackContext;
+            this.signal = signal;
+            this.progress = progress;
+            this.totalBytes = totalBytes;
+            this.interval = interval;
+        }
+
+        @Override
+        public void onProgress(long progress) {
+            bytesTransferred = progress;
+
+            if (!this.progress) {
+                return;
+            }
+
+            long now = SystemClock.elapsedRealtime();
+            if (now - lastSent >= interval) {
+                lastSent = now;
+                send();
+            }
+        }
+
+        public void finish() {
+            if (progress) {
+                send();
+            }
+        }
+
+        private void send() {
+            try {
+                long elapsed = Math.max(SystemClock.elapsedRealtime() - startTime, 1);
+
+                JSONObject event = new JSONObject();
+                event.put("event", "progress");
+                event.put("bytesTransferred", bytesTransferred);
+                event.put("totalBytes", totalBytes);
+                event.put("throughput", bytesTransferred * 1000 / elapsed);
+
+                PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, event);
+                pluginResult.setKeepCallback(true);
+                sendResult(pluginResult, callbackContext);
+            } catch (JSONException e) {
+                Log.d(getClass().getName(), e.getLocalizedMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * A registered observer and the URIs it saw since its last event. Changes are collected until
+     * none has arrived for debounceMs, then sent as one event.
+     */
+    private static class Watch {
+        public final int id;
+        public final CallbackContext callbackContext;
+        public final long debounceMs;
+        public final LinkedHashSet<String> pending = new LinkedHashSet<>();
+        public ContentObserver observer;
+        public boolean scheduled = false;
+        public boolean overflow = false;
+        public long lastChange = 0;
+
+        Watch(int id, @NonNull CallbackContext callbackContext, long debounceMs) {
+            this.id = id;
+            this.callbackContext = callbackContext;
+            this.debounceMs = debounceMs;
+        }
+    }
+
+    private static class WriteStream {
+        public final Target target;
+        public final OutputStream outputStream;
+        public long written = 0;
+
+        WriteStream(@NonNull Target target, @NonNull OutputStream outputStream) {
+            this.target = target;
+            this.outputStream = outputStream;
+        }
+    }
+
+    /**
+     * A document being pushed to JS in chunks. Chunks are only read while JS has granted credits,
+     * so at most a few chunks are in flight no matter how large the document is.
+     */
+    private static class ReadStream {
+        public final int handle;
+        public final InputStream inputStream;
+        public final CallbackContext callbackContext;
+        public final int chunkSize;
+        public final boolean binary;
+        public int credits;
+        public boolean pumping = false;
+        public boolean closed = false;
+        public long position = 0;
+
+        ReadStream(int handle, @NonNull InputStream inputStream, @NonNull CallbackContext callbackContext, int chunkSize, int credits, boolean binary) {
+            this.handle = handle;
+            this.inputStream = inputStream;
+            this.callbackContext = callbackContext;
+            this.chunkSize = chunkSize;
+            this.credits = credits;
+            this.binary = binary;
+        }
+    }
+
     @Override
     public void initialize(@NonNull CordovaInterface cordovaInterface, @NonNull CordovaWebView cordovaWebView) {
         this.cordovaInterface = cordovaInterface;
         this.cordovaWebView = cordovaWebView;
+
+        scheduler = new IoScheduler(
+                preferences.getInteger("SafMediastoreIoThreads", 2),
+                preferences.getInteger("SafMediastoreMetadataThreads", 2)
+        );
     }
 
     @Override
@@ -112,6 +643,24 @@ public class SafMediastore extends CordovaPlugin implements ValueCallback<String
                 return true;
             }
 
+            if (action.equals("readStream")) {
+                readStream(args, callbackContext);
+
+                return true;
+            }
+
+            if (action.equals("readStreamAck")) {
+                readStreamAck(args, callbackContext);
+
+                return true;
+            }
+
+            if (action.equals("readStreamCancel")) {
+                readStreamCancel(args, callbackContext);
+
+                return true;
+            }
+
             if (action.equals("saveFile")) {
                 saveFile(args, callbackContext);
 
@@ -136,6 +685,54 @@ public class SafMediastore extends CordovaPlugin implements ValueCallback<String
                 return true;
             }
 
+            if (action.equals("writeAt")) {
+                writeAt(args, callbackContext, false);
+
+                return true;
+            }
+
+            if (action.equals("append")) {
+                writeAt(args, callbackContext, true);
+
+                return true;
+            }
+
+            if (action.equals("openWriteStream")) {
+                openWriteStream(args, callbackContext);
+
+                return true;
+            }
+
+            if (action.equals("writeChunk")) {
+                writeChunk(args, callbackContext);
+
+                return true;
+            }
+
+            if (action.equals("closeWriteStream")) {
+                closeWriteStream(args, callbackContext);
+
+                return true;
+            }
+
+            if (action.equals("copyFile")) {
+                copyFile(args, callbackContext, false);
+
+                return true;
+            }
+
+            if (action.equals("moveFile")) {
+                copyFile(args, callbackContext, true);
+
+                return true;
+            }
+
+            if (action.equals("executeBatch")) {
+                executeBatch(args, callbackContext);
+
+                return true;
+            }
+
             if (action.equals("deleteFile")) {
                 deleteFile(args, callbackContext);
 
@@ -148,6 +745,138 @@ public class SafMediastore extends CordovaPlugin implements ValueCallback<String
                 return true;
             }
 
+            if (action.equals("listFolder")) {
+                listFolder(args, callbackContext);
+
+                return true;
+            }
+
+            if (action.equals("getCacheStats")) {
+                getCacheStats(args, callbackContext);
+
+                return true;
+            }
+
+            if (action.equals("getInfoBatch")) {
+                getInfoBatch(args, callbackContext);
+
+                return true;
+            }
+
+            if (action.equals("getSchedulerStats")) {
+                getSchedulerStats(args, callbackContext);
+
+                return true;
+            }
+
+            if (action.equals("walkTree")) {
+                walkTree(args, callbackContext);
+
+                return true;
+            }
+
+            if (action.equals("watch")) {
+                watch(args, callbackContext);
+
+                return true;
+            }
+
+            if (action.equals("unwatch")) {
+                unwatch(args, callbackContext);
+
+                return true;
+            }
+
+            if (action.equals("getWebUrl")) {
+                getWebUrl(args, callbackContext);
+
+                return true;
+            }
+
+            if (action.equals("revokeWebUrl")) {
+                revokeWebUrl(args, callbackContext);
+
+                return true;
+            }
+
+            if (action.equals("getThumbnail")) {
+                getThumbnail(args, callbackContext);
+
+                return true;
+            }
+
+            if (action.equals("readImage")) {
+                readImage(args, callbackContext);
+
+                return true;
+            }
+
+            if (action.equals("getMediaChanges")) {
+                getMediaChanges(args, callbackContext);
+
+                return true;
+            }
+
+            if (action.equals("queryMedia")) {
+                queryMedia(args, callbackContext);
+
+                return true;
+            }
+
+            if (action.equals("exportFromPath")) {
+                exportFromPath(args, callbackContext);
+
+                return true;
+            }
+
+            if (action.equals("importToPath")) {
+                importToPath(args, callbackContext);
+
+                return true;
+            }
+
+            if (action.equals("syncFolder")) {
+                syncFolder(args, callbackContext);
+
+                return true;
+            }
+
+            if (action.equals("zipFolder")) {
+                zipFolder(args, callbackContext);
+
+                return true;
+            }
+
+            if (action.equals("unzip")) {
+                unzip(args, callbackContext);
+
+                return true;
+            }
+
+            if (action.equals("hashFile")) {
+                hashFile(args, callbackContext);
+
+                return true;
+            }
+
+            if (action.equals("hashFileBatch")) {
+                hashFileBatch(args, callbackContext);
+
+                return true;
+            }
+
+            if (action.equals("getMediaMetadata")) {
+                getMediaMetadata(args, callbackContext);
+
+                return true;
+            }
+
+            if (action.equals("cancel")) {
+                cancel(args, callbackContext);
+
+                return true;
+            }
+
             if (action.equals("getUri")) {
                 getUri(args, callbackContext);
 
@@ -181,7 +910,7 @@ public class SafMediastore extends CordovaPlugin implements ValueCallback<String
 
         callbackContexts.remove(callbackIndex);
 
-        cordovaInterface.getThreadPool().execute(new Runnable() {
+        scheduler.execute(action == Action.saveFile ? IoScheduler.Lane.bulk : IoScheduler.Lane.metadata, null, new Runnable() {
             @Override
             public void run() {
                 try {
@@ -192,13 +921,13 @@ public class SafMediastore extends CordovaPlugin implements ValueCallback<String
                             return;
                         }
 
-                        String data = saveFileData.remove(callbackContext.getCallbackId());
+                        InputStream data = saveFileData.remove(callbackContext.getCallbackId());
                         if (data == null) {
                             onError("No saveFileData in onActivityResult", callbackContext);
                             return;
                         }
 
-                        writeFile(uri, data, callbackContext);
+                        writeFile(uri, data, null, null, callbackContext);
 
                         return;
                     }
@@ -226,19 +955,120 @@ public class SafMediastore extends CordovaPlugin implements ValueCallback<String
     public void onReceiveValue(String value) {
     }
 
-    private void selectFolder(@NonNull CordovaArgs args, @NonNull CallbackContext callbackContext) {
-        JSONObject params = args.optJSONObject(0);
-        String folder = params.optString("folder").trim();
-        String title = params.optString("title", "Select Folder").trim();
-        boolean write = params.optBoolean("writable", true);
-
-        Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT_TREE);
-        if (!folder.equals("")) {
-            intent.putExtra(DocumentsContract.EXTRA_INITIAL_URI, folder);
+    @Override
+    public void onReset() {
+        DocumentServer server = documentServer;
+        if (server != null) {
+            server.revokeAll();
         }
 
-        intent.addFlags(Intent.FLAG_GRANT_PERSISTABLE_URI_PERMISSION);
-        intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        unwatchAll();
+
+        // the page that would have closed them is gone
+        abortWriteStreams();
+        closeReadStreams();
+
+        super.onReset();
+    }
+
+    @Override
+    public void onDestroy() {
+        DocumentServer server = documentServer;
+        if (server != null) {
+            server.revokeAll();
+        }
+
+        unwatchAll();
+
+        List<CancellationSignal> signals;
+        synchronized (operations) {
+            signals = new ArrayList<>(operations.values());
+            operations.clear();
+        }
+
+        for (CancellationSignal signal : signals) {
+            signal.cancel();
+        }
+
+        abortWriteStreams();
+
+        synchronized (documentIds) {
+            for (ContentObserver observer : documentIdObservers.values()) {
+                cordovaInterface.getContext().getContentResolver().unregisterContentObserver(observer);
+            }
+
+            documentIdObservers.clear();
+            documentIds.clear();
+        }
+
+        closeReadStreams();
+
+        scheduler.shutdown();
+
+        synchronized (this) {
+            if (walkPool != null) {
+                walkPool.shutdownNow();
+                walkPool = null;
+            }
+
+            if (bitmaps != null) {
+                bitmaps.clear();
+            }
+
+            if (metadataCache != null) {
+                metadataCache.close();
+            }
+        }
+
+        super.onDestroy();
+    }
+
+    /**
+     * Closes every open write stream and deletes what it had written, or its pending MediaStore
+     * entry.
+     */
+    private void abortWriteStreams() {
+        List<WriteStream> streams;
+        synchronized (writeStreams) {
+            streams = new ArrayList<>(writeStreams.values());
+            writeStreams.clear();
+        }
+
+        for (WriteStream stream : streams) {
+            try {
+                stream.outputStream.close();
+                discard(stream.target);
+            } catch (Throwable t) {
+                Log.d(getClass().getName(), t.getLocalizedMessage(), t);
+            }
+        }
+    }
+
+    private void closeReadStreams() {
+        List<ReadStream> streams;
+        synchronized (readStreams) {
+            streams = new ArrayList<>(readStreams.values());
+            readStreams.clear();
+        }
+
+        for (ReadStream stream : streams) {
+            closeReadStream(stream);
+        }
+    }
+
+    private void selectFolder(@NonNull CordovaArgs args, @NonNull CallbackContext callbackContext) {
+        JSONObject params = args.optJSONObject(0);
+        String folder = params.optString("folder").trim();
+        String title = params.optString("title", "Select Folder").trim();
+        boolean write = params.optBoolean("writable", true);
+
+        Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT_TREE);
+        if (!folder.equals("")) {
+            intent.putExtra(DocumentsContract.EXTRA_INITIAL_URI, folder);
+        }
+
+        intent.addFlags(Intent.FLAG_GRANT_PERSISTABLE_URI_PERMISSION);
+        intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
 
         if (write) {
             intent.addFlags(Intent.FLAG_GRANT_WRITE_URI_PERMISSION);
@@ -321,12 +1151,17 @@ public class SafMediastore extends CordovaPlugin implements ValueCallback<String
     }
 
     private void readFile(@NonNull final CordovaArgs args, @NonNull final CallbackContext callbackContext) {
-        cordovaInterface.getThreadPool().execute(new Runnable() {
+        final CancellationSignal signal = startOperation(args);
+
+        scheduler.execute(IoScheduler.Lane.bulk, taskKey(args, "uri"), new Runnable() {
             @Override
             public void run() {
                 try {
+                    signal.throwIfCanceled();
+
                     JSONObject params = args.getJSONObject(0);
                     Uri uri = Uri.parse(params.getString("uri"));
+                    boolean binary = params.optBoolean("binary");
 
                     DocumentFile file = DocumentFile.fromSingleUri(cordovaInterface.getContext(), uri);
 
@@ -335,27 +1170,109 @@ public class SafMediastore extends CordovaPlugin implements ValueCallback<String
                         return;
                     }
 
-                    int size = (int) file.length();
                     String type = file.getType();
 
-                    try (
-                            InputStream inputStream = cordovaInterface.getContext().getContentResolver().openInputStream(file.getUri());
-                            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(size);
-                            Base64OutputStream outputStream = new Base64OutputStream(byteArrayOutputStream, Base64.DEFAULT)
-                    ) {
+                    if (params.has("offset") || params.has("length")) {
+                        long offset = Math.max(params.optLong("offset"), 0);
+                        int length = params.optInt("length", -1);
+
+                        JSONObject result = new JSONObject();
+                        result.put("type", type);
+                        result.put("offset", offset);
+                        // Blob.size is the length read
+                        result.put("fileSize", file.length());
+
+                        sendData(readRange(file.getUri(), offset, length), result, binary, callbackContext);
+                        return;
+                    }
+
+                    int size = arrayLength(file.length(), "file too large to read at once, use offset and length or readStream: " + uri);
+                    Transfer transfer = transfer(params, signal, size, callbackContext);
+
+                    byte[] data;
+                    try (InputStream inputStream = cordovaInterface.getContext().getContentResolver().openInputStream(file.getUri())) {
                         if (inputStream == null) {
                             onError("could not open file", callbackContext);
                             return;
                         }
 
-                        FileUtils.copy(inputStream, outputStream);
+                        if (!transfer.progress) {
+                            data = readFully(inputStream, size, signal);
+                        } else {
+                            ByteArrayOutputStream outputStream = new ByteArrayOutputStream(Math.max(size, 32));
+                            copy(inputStream, outputStream, transfer);
+                            data = outputStream.toByteArray();
+                        }
+                    }
 
-                        JSONObject result = new JSONObject();
-                        result.put("data", byteArrayOutputStream.toString());
-                        result.put("type", type);
+                    JSONObject result = new JSONObject();
+                    result.put("type", type);
 
-                        sendResult(result, callbackContext);
+                    sendData(data, result, binary, callbackContext);
+                } catch (Throwable t) {
+                    onError(t, callbackContext);
+                } finally {
+                    finishOperation(args, signal);
+                }
+            }
+        });
+    }
+
+    private void readStream(@NonNull final CordovaArgs args, @NonNull final CallbackContext callbackContext) {
+        scheduler.execute(IoScheduler.Lane.bulk, null, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    JSONObject params = args.getJSONObject(0);
+                    Uri uri = Uri.parse(params.getString("uri"));
+                    int chunkSize = params.optInt("chunkSize", 64 * 1024);
+                    int prefetch = params.optInt("prefetch", 2);
+                    boolean binary = params.optBoolean("binary");
+
+                    if (chunkSize <= 0) {
+                        onError("invalid chunkSize: " + chunkSize, callbackContext);
+                        return;
+                    }
+
+                    DocumentFile file = DocumentFile.fromSingleUri(cordovaInterface.getContext(), uri);
+                    if (file == null || file.isDirectory() || !file.canRead()) {
+                        onError("could not open file", callbackContext);
+                        return;
+                    }
+
+                    InputStream inputStream = cordovaInterface.getContext().getContentResolver().openInputStream(file.getUri());
+                    if (inputStream == null) {
+                        onError("could not open file", callbackContext);
+                        return;
+                    }
+
+                    ReadStream stream = new ReadStream(
+                            lastStreamHandle.incrementAndGet(),
+                            inputStream,
+                            callbackContext,
+                            chunkSize,
+                            Math.max(prefetch, 1),
+                            binary
+                    );
+
+                    // pumped right below, acknowledgements must not start a second pump
+                    stream.pumping = true;
+
+                    synchronized (readStreams) {
+                        readStreams.put(stream.handle, stream);
                     }
+
+                    JSONObject result = new JSONObject();
+                    result.put("event", "open");
+                    result.put("handle", stream.handle);
+                    result.put("type", file.getType());
+                    result.put("size", file.length());
+
+                    PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, result);
+                    pluginResult.setKeepCallback(true);
+                    sendResult(pluginResult, callbackContext);
+
+                    pumpReadStream(stream);
                 } catch (Throwable t) {
                     onError(t, callbackContext);
                 }
@@ -363,9 +1280,178 @@ public class SafMediastore extends CordovaPlugin implements ValueCallback<String
         });
     }
 
+    private void readStreamAck(@NonNull CordovaArgs args, @NonNull CallbackContext callbackContext) throws JSONException {
+        JSONObject params = args.getJSONObject(0);
+        int handle = params.getInt("handle");
+        int count = Math.max(params.optInt("count", 1), 1);
+
+        final ReadStream stream;
+        synchronized (readStreams) {
+            stream = readStreams.get(handle);
+        }
+
+        if (stream == null) {
+            // the stream already ended, late acknowledgements are harmless
+            sendResult(callbackContext);
+            return;
+        }
+
+        boolean schedule;
+        synchronized (stream) {
+            stream.credits += count;
+            schedule = !stream.pumping && !stream.closed;
+
+            if (schedule) {
+                stream.pumping = true;
+            }
+        }
+
+        if (schedule) {
+            scheduler.execute(IoScheduler.Lane.bulk, null, new Runnable() {
+                @Override
+                public void run() {
+                    pumpReadStream(stream);
+                }
+            });
+        }
+
+        sendResult(callbackContext);
+    }
+
+    private void readStreamCancel(@NonNull CordovaArgs args, @NonNull CallbackContext callbackContext) throws JSONException {
+        JSONObject params = args.getJSONObject(0);
+        int handle = params.getInt("handle");
+
+        ReadStream stream;
+        synchronized (readStreams) {
+            stream = readStreams.remove(handle);
+        }
+
+        if (stream != null) {
+            closeReadStream(stream);
+        }
+
+        sendResult(callbackContext);
+    }
+
+    /**
+     * Sends chunks while the stream has credits left. The caller sets stream.pumping so only one
+     * thread pumps a stream at a time; acknowledgements arriving meanwhile just add credits.
+     */
+    private void pumpReadStream(@NonNull ReadStream stream) {
+        try {
+            while (true) {
+                synchronized (stream) {
+                    if (stream.closed || stream.credits <= 0) {
+                        stream.pumping = false;
+                        return;
+                    }
+
+                    stream.credits--;
+                }
+
+                byte[] chunk = new byte[stream.chunkSize];
+                int read = 0;
+                while (read < chunk.length) {
+                    int count = stream.inputStream.read(chunk, read, chunk.length - read);
+                    if (count < 0) {
+                        break;
+                    }
+
+                    read += count;
+                }
+
+                if (read < chunk.length) {
+                    chunk = Arrays.copyOf(chunk, read);
+                }
+
+                long offset = stream.position;
+                stream.position += read;
+
+                if (chunk.length == 0) {
+                    synchronized (readStreams) {
+                        readStreams.remove(stream.handle);
+                    }
+
+                    closeReadStream(stream);
+                    return;
+                }
+
+                JSONObject info = new JSONObject();
+                info.put("event", "data");
+                info.put("handle", stream.handle);
+                info.put("offset", offset);
+
+                PluginResult pluginResult;
+                if (stream.binary) {
+                    List<PluginResult> parts = new ArrayList<>(2);
+                    parts.add(new PluginResult(PluginResult.Status.OK, chunk));
+                    parts.add(new PluginResult(PluginResult.Status.OK, info));
+                    pluginResult = new PluginResult(PluginResult.Status.OK, parts);
+                } else {
+                    info.put("data", Base64.encodeToString(chunk, Base64.NO_WRAP));
+                    pluginResult = new PluginResult(PluginResult.Status.OK, info);
+                }
+
+                pluginResult.setKeepCallback(true);
+                sendResult(pluginResult, stream.callbackContext);
+            }
+        } catch (Throwable t) {
+            synchronized (readStreams) {
+                readStreams.remove(stream.handle);
+            }
+
+            synchronized (stream) {
+                stream.pumping = false;
+
+                if (stream.closed) {
+                    // cancelled while reading
+                    return;
+                }
+
+                stream.closed = true;
+            }
+
+            try {
+                stream.inputStream.close();
+            } catch (IOException e) {
+                Log.d(getClass().getName(), e.getLocalizedMessage(), e);
+            }
+
+            onError(t, stream.callbackContext);
+        }
+    }
+
+    private void closeReadStream(@NonNull ReadStream stream) {
+        synchronized (stream) {
+            if (stream.closed) {
+                return;
+            }
+
+            stream.closed = true;
+        }
+
+        try {
+            stream.inputStream.close();
+        } catch (IOException e) {
+            Log.d(getClass().getName(), e.getLocalizedMessage(), e);
+        }
+
+        try {
+            JSONObject result = new JSONObject();
+            result.put("event", "end");
+            result.put("handle", stream.handle);
+            result.put("size", stream.position);
+
+            sendResult(result, stream.callbackContext);
+        } catch (JSONException e) {
+            onError(e, stream.callbackContext);
+        }
+    }
+
     private void saveFile(@NonNull CordovaArgs args, @NonNull CallbackContext callbackContext) throws JSONException {
         JSONObject params = args.getJSONObject(0);
-        String data = params.getString("data").trim();
+        InputStream data = openData(args, params);
         String folder = params.optString("folder").trim();
         String filename = params.optString("filename").trim();
         String mimeType = params.optString("mimeType").trim();
@@ -415,19 +1501,19 @@ public class SafMediastore extends CordovaPlugin implements ValueCallback<String
             return;
         }
 
-        cordovaInterface.getThreadPool().execute(new Runnable() {
+        final CancellationSignal signal = startOperation(args);
+
+        scheduler.execute(IoScheduler.Lane.bulk, taskKey(args, "uri", "path"), new Runnable() {
             @Override
             public void run() {
                 try {
-                    String data = params.getString("data").trim();
+                    signal.throwIfCanceled();
+
+                    InputStream data = openData(args, params);
+                    Transfer transfer = transfer(params, signal, dataLength(data), callbackContext);
                     Uri uri = Uri.parse(uriString);
 
-                    DocumentFile file;
-                    try {
-                        file = DocumentFile.fromTreeUri(cordovaInterface.getContext(), uri);
-                    } catch (IllegalArgumentException e) {
-                        file = DocumentFile.fromSingleUri(cordovaInterface.getContext(), uri);
-                    }
+                    DocumentFile file = documentFile(uri);
 
                     if (file == null) {
                         onError("Could not open: " + uriString, callbackContext);
@@ -435,7 +1521,7 @@ public class SafMediastore extends CordovaPlugin implements ValueCallback<String
                     }
 
                     if (file.isFile()) {
-                        writeFile(file, data, callbackContext);
+                        writeFile(file, data, transfer, ImageTransform.parse(params.optJSONObject("transform"), file.getType()), callbackContext);
                         return;
                     }
 
@@ -443,83 +1529,138 @@ public class SafMediastore extends CordovaPlugin implements ValueCallback<String
                     String mimeType = params.optString("mimeType").trim();
 
                     if (mimeType.equals("")) {
-                        mimeType = MimeTypeMap.getSingleton().getMimeTypeFromExtension(path.substring(path.lastIndexOf('.') + 1));
+                        mimeType = guessMimeType(path);
+                    }
 
-                        if (mimeType == null) {
-                            mimeType = "*/*";
-                        }
+                    ImageTransform transform = ImageTransform.parse(params.optJSONObject("transform"), mimeType);
+                    if (transform != null) {
+                        mimeType = transform.mimeType();
                     }
 
                     if (path.startsWith("/")) {
                         path = path.substring(1);
                     }
 
-                    writeFile(file, path, data, mimeType, callbackContext);
+                    writeFile(file, path, data, mimeType, transfer, transform, callbackContext);
                 } catch (Throwable t) {
                     onError(t, callbackContext);
+                } finally {
+                    finishOperation(args, signal);
                 }
             }
         });
     }
 
     private void writeMedia(@NonNull final CordovaArgs args, @NonNull final CallbackContext callbackContext) {
-        cordovaInterface.getThreadPool().execute(new Runnable() {
+        final CancellationSignal signal = startOperation(args);
+
+        scheduler.execute(IoScheduler.Lane.bulk, taskKey(args, "uri", "path"), new Runnable() {
             @Override
             public void run() {
                 try {
+                    signal.throwIfCanceled();
+
                     JSONObject params = args.getJSONObject(0);
-                    String data = params.getString("data").trim();
+                    InputStream data = openData(args, params);
                     String path = params.getString("path").trim();
                     String mimeType = params.optString("mimeType").trim();
 
                     if (mimeType.equals("")) {
-                        mimeType = MimeTypeMap.getSingleton().getMimeTypeFromExtension(path.substring(path.lastIndexOf('.') + 1));
+                        mimeType = guessMimeType(path);
+                    }
 
-                        if (mimeType == null) {
-                            mimeType = "*/*";
-                        }
+                    ImageTransform transform = ImageTransform.parse(params.optJSONObject("transform"), mimeType);
+                    if (transform != null) {
+                        mimeType = transform.mimeType();
                     }
 
                     if (path.startsWith("/")) {
                         path = path.substring(1);
                     }
 
-                    writeMedia(path, data, mimeType, callbackContext);
+                    writeMedia(path, data, mimeType, transfer(params, signal, dataLength(data), callbackContext), transform, callbackContext);
                 } catch (Throwable t) {
                     onError(t, callbackContext);
+                } finally {
+                    finishOperation(args, signal);
                 }
             }
         });
     }
 
     private void overwriteFile(@NonNull final CordovaArgs args, @NonNull final CallbackContext callbackContext) {
-        cordovaInterface.getThreadPool().execute(new Runnable() {
+        final CancellationSignal signal = startOperation(args);
+
+        scheduler.execute(IoScheduler.Lane.bulk, taskKey(args, "uri"), new Runnable() {
             @Override
             public void run() {
                 try {
+                    signal.throwIfCanceled();
+
                     JSONObject params = args.getJSONObject(0);
                     String uriString = params.getString("uri").trim();
-                    String data = params.getString("data").trim();
+                    InputStream data = openData(args, params);
 
-                    writeFile(Uri.parse(uriString), data, callbackContext);
+                    writeFile(Uri.parse(uriString), data, transfer(params, signal, dataLength(data), callbackContext), null, callbackContext);
                 } catch (Throwable t) {
                     onError(t, callbackContext);
+                } finally {
+                    finishOperation(args, signal);
                 }
             }
         });
     }
 
-    private void deleteFile(@NonNull CordovaArgs args, @NonNull CallbackContext callbackContext) {
-        cordovaInterface.getThreadPool().execute(new Runnable() {
+    /**
+     * Patches bytes at params.offset, or appends them, without truncating or rewriting the rest of
+     * the document. Providers that only hand out pipes cannot do either and get an error instead of
+     * a silent full rewrite.
+     */
+    private void writeAt(@NonNull final CordovaArgs args, @NonNull final CallbackContext callbackContext, final boolean append) {
+        scheduler.execute(IoScheduler.Lane.bulk, taskKey(args, "uri"), new Runnable() {
             @Override
             public void run() {
                 try {
                     JSONObject params = args.getJSONObject(0);
-                    String uriString = params.getString("uri").trim();
+                    Uri uri = Uri.parse(params.getString("uri").trim());
+                    long offset = append ? -1 : params.getLong("offset");
+
+                    if (!append && offset < 0) {
+                        onError("invalid offset: " + offset, callbackContext);
+                        return;
+                    }
 
-                    int deleted = cordovaInterface.getContext().getContentResolver().delete(Uri.parse(uriString), null);
+                    InputStream data = openData(args, params);
+                    ByteBuffer buffer = ByteBuffer.wrap(readFully(data, arrayLength(dataLength(data), "data too large")));
 
-                    sendResult(deleted, callbackContext);
+                    ParcelFileDescriptor fileDescriptor;
+                    try {
+                        fileDescriptor = cordovaInterface.getContext().getContentResolver().openFileDescriptor(uri, append ? "wa" : "rw");
+                    } catch (IllegalArgumentException | UnsupportedOperationException e) {
+                        onError((append ? "append" : "writeAt") + " is not supported by the provider of: " + uri, callbackContext);
+                        return;
+                    }
+
+                    if (fileDescriptor == null) {
+                        onError("could not open file: " + uri, callbackContext);
+                        return;
+                    }
+
+                    try (FileOutputStream outputStream = new ParcelFileDescriptor.AutoCloseOutputStream(fileDescriptor)) {
+                        if (fileDescriptor.getStatSize() < 0) {
+                            onError((append ? "append" : "writeAt") + " is not supported by the provider of: " + uri + " (no random access)", callbackContext);
+                            return;
+                        }
+
+                        FileChannel channel = outputStream.getChannel();
+                        long position = append ? channel.size() : offset;
+
+                        while (buffer.hasRemaining()) {
+                            position += channel.write(buffer, position);
+                        }
+                    }
+
+                    fileInfo(uri, callbackContext);
                 } catch (Throwable t) {
                     onError(t, callbackContext);
                 }
@@ -527,26 +1668,41 @@ public class SafMediastore extends CordovaPlugin implements ValueCallback<String
         });
     }
 
-    private void getInfo(@NonNull CordovaArgs args, @NonNull CallbackContext callbackContext) {
-        cordovaInterface.getThreadPool().execute(new Runnable() {
+    private void openWriteStream(@NonNull final CordovaArgs args, @NonNull final CallbackContext callbackContext) {
+        scheduler.execute(IoScheduler.Lane.metadata, taskKey(args, "uri", "path"), new Runnable() {
             @Override
             public void run() {
                 try {
                     JSONObject params = args.getJSONObject(0);
-                    String uriString = params.getString("uri").trim();
-                    String path = params.optString("path").trim();
+                    Target target = resolveTarget(params);
 
-                    Uri uri = Uri.parse(uriString);
-                    if (!path.equals("")) {
-                        uri = resolveContentUri(uri, path);
+                    OutputStream outputStream;
+                    try {
+                        outputStream = cordovaInterface.getContext().getContentResolver().openOutputStream(target.uri, "wt");
+                    } catch (Throwable t) {
+                        discard(target);
 
-                        if (uri == null) {
-                            onError("could not find file: " + uriString + " : " + path, callbackContext);
-                            return;
-                        }
+                        throw t;
                     }
 
-                    fileInfo(uri, callbackContext);
+                    if (outputStream == null) {
+                        discard(target);
+
+                        onError("Could not open file for writing: " + target.uri, callbackContext);
+                        return;
+                    }
+
+                    int handle;
+                    synchronized (writeStreams) {
+                        handle = lastStreamHandle.incrementAndGet();
+                        writeStreams.put(handle, new WriteStream(target, outputStream));
+                    }
+
+                    JSONObject result = new JSONObject();
+                    result.put("handle", handle);
+                    result.put("uri", target.uri.toString());
+
+                    sendResult(result, callbackContext);
                 } catch (Throwable t) {
                     onError(t, callbackContext);
                 }
@@ -554,19 +1710,35 @@ public class SafMediastore extends CordovaPlugin implements ValueCallback<String
         });
     }
 
-    private void getUri(@NonNull CordovaArgs args, @NonNull CallbackContext callbackContext) {
-        cordovaInterface.getThreadPool().execute(new Runnable() {
+    private void writeChunk(@NonNull final CordovaArgs args, @NonNull final CallbackContext callbackContext) {
+        scheduler.execute(IoScheduler.Lane.bulk, taskKey(args, "handle"), new Runnable() {
             @Override
             public void run() {
                 try {
                     JSONObject params = args.getJSONObject(0);
-                    String uriString = params.getString("uri").trim();
-                    String path = params.getString("path").trim();
+                    int handle = params.getInt("handle");
 
-                    Uri uri = resolveContentUri(Uri.parse(uriString), path);
+                    WriteStream stream;
+                    synchronized (writeStreams) {
+                        stream = writeStreams.get(handle);
+                    }
+
+                    if (stream == null) {
+                        onError("Invalid write stream: " + handle, callbackContext);
+                        return;
+                    }
+
+                    long written;
+                    try (InputStream inputStream = openData(args, params)) {
+                        synchronized (stream) {
+                            stream.written += FileUtils.copy(inputStream, stream.outputStream);
+                            written = stream.written;
+                        }
+                    }
 
                     JSONObject result = new JSONObject();
-                    result.put("uri", uri == null ? JSONObject.NULL : uri);
+                    result.put("handle", handle);
+                    result.put("written", written);
 
                     sendResult(result, callbackContext);
                 } catch (Throwable t) {
@@ -576,238 +1748,4494 @@ public class SafMediastore extends CordovaPlugin implements ValueCallback<String
         });
     }
 
-    private void startActivity(@NonNull Intent intent, @NonNull Action action, @NonNull CallbackContext callbackContext) {
-        short index = ++lastCallbackIndex;
-        callbackContexts.put(index, callbackContext);
+    private void closeWriteStream(@NonNull final CordovaArgs args, @NonNull final CallbackContext callbackContext) {
+        scheduler.execute(IoScheduler.Lane.bulk, taskKey(args, "handle"), new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    JSONObject params = args.getJSONObject(0);
+                    int handle = params.getInt("handle");
+                    boolean abort = params.optBoolean("abort");
 
-        cordovaInterface.startActivityForResult(
-                this,
-                intent,
-                (action.value << 16) | index
-        );
-    }
+                    WriteStream stream;
+                    synchronized (writeStreams) {
+                        stream = writeStreams.remove(handle);
+                    }
+
+                    if (stream == null) {
+                        onError("Invalid write stream: " + handle, callbackContext);
+                        return;
+                    }
+
+                    synchronized (stream) {
+                        stream.outputStream.close();
+                    }
+
+                    if (abort) {
+                        discard(stream.target);
+                        sendResult(callbackContext);
+
+                        return;
+                    }
+
+                    publish(stream.target);
+
+                    fileInfo(stream.target.uri, callbackContext);
+                } catch (Throwable t) {
+                    onError(t, callbackContext);
+                }
+            }
+        });
+    }
+
+    private void copyFile(@NonNull final CordovaArgs args, @NonNull final CallbackContext callbackContext, final boolean move) {
+        final CancellationSignal signal = startOperation(args);
+
+        scheduler.execute(IoScheduler.Lane.bulk, taskKey(args, "sourceUri"), new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    signal.throwIfCanceled();
+
+                    JSONObject params = args.getJSONObject(0);
+                    Uri source = Uri.parse(params.getString("sourceUri").trim());
+                    Uri targetTree = Uri.parse(params.getString("targetTreeUri").trim());
+                    String sourceParentString = params.optString("sourceParentUri").trim();
+                    String path = params.optString("path").trim();
+                    String mimeType = params.optString("mimeType").trim();
+
+                    ContentResolver contentResolver = cordovaInterface.getContext().getContentResolver();
+
+                    DocumentFile sourceFile = DocumentFile.fromSingleUri(cordovaInterface.getContext(), source);
+                    if (sourceFile == null || !sourceFile.isFile()) {
+                        onError("could not open file: " + source, callbackContext);
+                        return;
+                    }
+
+                    String sourceName = sourceFile.getName();
+                    if (path.startsWith("/")) {
+                        path = path.substring(1);
+                    }
+
+                    if (path.equals("") || path.endsWith("/")) {
+                        if (sourceName == null) {
+                            onError("missing path for: " + source, callbackContext);
+                            return;
+                        }
+
+                        path += sourceName;
+                    }
+
+                    if (mimeType.equals("")) {
+                        mimeType = sourceFile.getType() == null ? guessMimeType(path) : sourceFile.getType();
+                    }
+
+                    DocumentFile root = documentFile(targetTree);
+                    if (root == null || !root.isDirectory()) {
+                        onError("Target is not a directory: " + targetTree, callbackContext);
+                        return;
+                    }
+
+                    String filename;
+                    Uri parent;
+                    int index = path.lastIndexOf("/");
+                    if (index > 0) {
+                        parent = createFolders(root.getUri(), path.substring(0, index));
+                        filename = path.substring(index + 1);
+                    } else {
+                        parent = root.getUri();
+                        filename = path;
+                    }
+
+                    // writing over the source would truncate it before it is read, and a move would then delete it
+                    String existingId = resolveDocumentId(parent, filename);
+                    if (existingId != null && sameDocument(source, DocumentsContract.buildDocumentUriUsingTree(parent, existingId))) {
+                        onError("source and target are the same file: " + source, callbackContext);
+                        return;
+                    }
+
+                    Uri result = null;
+                    boolean sourceRemoved = false;
+
+                    if (
+                            DocumentsContract.isDocumentUri(cordovaInterface.getContext(), source) &&
+                                    source.getAuthority() != null &&
+                                    source.getAuthority().equals(parent.getAuthority()) &&
+                                    existingId == null
+                    ) {
+                        int flags = documentFlags(source);
+
+                        try {
+                            if (move && !sourceParentString.equals("") && (flags & DocumentsContract.Document.FLAG_SUPPORTS_MOVE) != 0) {
+                                result = DocumentsContract.moveDocument(contentResolver, source, Uri.parse(sourceParentString), parent);
+                                sourceRemoved = result != null;
+
+                                if (sourceRemoved) {
+                                    forgetDocument(source);
+                                }
+                            } else if ((flags & DocumentsContract.Document.FLAG_SUPPORTS_COPY) != 0) {
+                                result = DocumentsContract.copyDocument(contentResolver, source, parent);
+                            }
+                        } catch (Exception e) {
+                            Log.d(getClass().getName(), "provider copy/move failed, copying instead: " + source, e);
+                        }
+
+                        if (result != null && !filename.equals(sourceName)) {
+                            try {
+                                Uri renamed = DocumentsContract.renameDocument(contentResolver, result, filename);
+                                if (renamed != null) {
+                                    result = renamed;
+                                }
+                            } catch (Exception e) {
+                                Log.d(getClass().getName(), "could not rename, copying instead: " + result, e);
+
+                                // stream copy the provider's copy (or the moved source) under the right name, then delete it
+                                if (sourceRemoved) {
+                                    source = result;
+                                    sourceRemoved = false;
+                                } else {
+                                    deleteDocument(result);
+                                    forgetDocument(result);
+                                }
+
+                                result = null;
+                            }
+                        }
+                    }
+
+                    if (result == null) {
+                        Target target = createFile(parent, filename, mimeType);
+
+                        if (sameDocument(source, target.uri)) {
+                            throw new IOException("source and target are the same file: " + source);
+                        }
+
+                        try {
+                            copyDocument(source, target.uri, transfer(params, signal, -1, callbackContext));
+                        } catch (Throwable t) {
+                            discard(target);
+
+                            throw t;
+                        }
+
+                        result = target.uri;
+                    }
+
+                    if (move && !sourceRemoved) {
+                        deleteDocument(source);
+                        forgetDocument(source);
+                    }
+
+                    fileInfo(result, callbackContext);
+                } catch (Throwable t) {
+                    onError(t, callbackContext);
+                } finally {
+                    finishOperation(args, signal);
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs a list of writeFile/writeMedia/deleteFile/createFolder operations in one bridge call.
+     * MediaStore rows are inserted and published with one applyBatch each, folders resolved by an
+     * earlier operation are served from the document ID cache.
+     */
+    private void executeBatch(@NonNull final CordovaArgs args, @NonNull final CallbackContext callbackContext) {
+        scheduler.execute(IoScheduler.Lane.bulk, batchKey(args), new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    JSONObject params = args.getJSONObject(0);
+                    JSONArray ops = params.getJSONArray("ops");
+                    boolean stopOnError = params.optBoolean("stopOnError");
+
+                    ContentResolver contentResolver = cordovaInterface.getContext().getContentResolver();
+                    int count = ops.length();
+                    Object[] results = new Object[count];
+                    Target[] media = new Target[count];
+
+                    ArrayList<ContentProviderOperation> inserts = new ArrayList<>();
+                    List<Integer> insertIndexes = new ArrayList<>();
+                    for (int i = 0; i < count; i++) {
+                        JSONObject op = ops.getJSONObject(i);
+                        if (!op.optString("op").equals("writeMedia")) {
+                            continue;
+                        }
+
+                        try {
+                            String path = op.getString("path").trim();
+                            if (path.startsWith("/")) {
+                                path = path.substring(1);
+                            }
+
+                            String mimeType = op.optString("mimeType").trim();
+                            if (mimeType.equals("")) {
+                                mimeType = guessMimeType(path);
+                            }
+
+                            ContentValues contentValues = new ContentValues();
+                            Uri volume = mediaValues(path, mimeType, contentValues);
+
+                            inserts.add(ContentProviderOperation.newInsert(volume).withValues(contentValues).build());
+                            insertIndexes.add(i);
+                        } catch (Exception e) {
+                            results[i] = e;
+                        }
+                    }
+
+                    if (!inserts.isEmpty()) {
+                        try {
+                            ContentProviderResult[] inserted = contentResolver.applyBatch(MediaStore.AUTHORITY, inserts);
+                            for (int i = 0; i < inserted.length; i++) {
+                                if (inserted[i].uri != null) {
+                                    media[insertIndexes.get(i)] = new Target(inserted[i].uri, true, true);
+                                }
+                            }
+                        } catch (Exception e) {
+                            // rows that were not inserted are retried one by one below
+                            Log.d(getClass().getName(), "batch insert failed: " + e.getLocalizedMessage(), e);
+                        }
+                    }
+
+                    boolean stopped = false;
+                    ArrayList<ContentProviderOperation> updates = new ArrayList<>();
+                    boolean[] written = new boolean[count];
+                    for (int i = 0; i < count; i++) {
+                        if (results[i] != null) {
+                            if (stopOnError) {
+                                stopped = true;
+                            }
+
+                            continue;
+                        }
+
+                        if (stopped) {
+                            continue;
+                        }
+
+                        JSONObject op = ops.getJSONObject(i);
+                        String name = op.optString("op");
+
+                        try {
+                            switch (name) {
+                                case "writeFile": {
+                                    Target target = resolveTarget(op);
+                                    try {
+                                        writeData(target.uri, openData(args, op, -1));
+                                    } catch (Throwable t) {
+                                        discard(target);
+
+                                        throw t;
+                                    }
+
+                                    results[i] = target.uri;
+                                    break;
+                                }
+                                case "writeMedia": {
+                                    String path = op.getString("path").trim();
+                                    if (path.startsWith("/")) {
+                                        path = path.substring(1);
+                                    }
+
+                                    if (media[i] == null) {
+                                        String mimeType = op.optString("mimeType").trim();
+                                        media[i] = insertMedia(path, mimeType.equals("") ? guessMimeType(path) : mimeType);
+                                    }
+
+                                    writeData(media[i].uri, openData(args, op, -1));
+
+                                    ContentValues contentValues = new ContentValues();
+                                    contentValues.put(MediaStore.MediaColumns.IS_PENDING, 0);
+                                    updates.add(ContentProviderOperation.newUpdate(media[i].uri).withValues(contentValues).build());
+                                    written[i] = true;
+
+                                    results[i] = media[i].uri;
+                                    break;
+                                }
+                                case "deleteFile": {
+                                    Uri uri = Uri.parse(op.getString("uri").trim());
+                                    int deleted = contentResolver.delete(uri, null);
+
+                                    if (deleted > 0) {
+                                        forgetDocument(uri);
+                                    }
+
+                                    results[i] = deleted;
+                                    break;
+                                }
+                                case "createFolder": {
+                                    results[i] = createFolders(Uri.parse(op.getString("uri").trim()), op.getString("path").trim());
+                                    break;
+                                }
+                                default:
+                                    throw new IllegalArgumentException("unknown op: " + name);
+                            }
+                        } catch (Throwable t) {
+                            results[i] = t;
+
+                            if (stopOnError) {
+                                stopped = true;
+                            }
+                        }
+                    }
+
+                    // pending rows that were never completed
+                    for (int i = 0; i < count; i++) {
+                        if (media[i] != null && !written[i]) {
+                            try {
+                                discard(media[i]);
+                            } catch (Exception e) {
+                                Log.d(getClass().getName(), e.getLocalizedMessage(), e);
+                            }
+                        }
+                    }
+
+                    if (!updates.isEmpty()) {
+                        try {
+                            contentResolver.applyBatch(MediaStore.AUTHORITY, updates);
+                        } catch (Exception e) {
+                            Log.d(getClass().getName(), "batch publish failed: " + e.getLocalizedMessage(), e);
+
+                            for (int i = 0; i < count; i++) {
+                                if (written[i]) {
+                                    publish(media[i]);
+                                }
+                            }
+                        }
+                    }
+
+                    int failed = 0;
+                    JSONArray array = new JSONArray();
+                    for (int i = 0; i < count; i++) {
+                        JSONObject entry = new JSONObject();
+                        Object value = results[i];
+
+                        if (value == null) {
+                            entry.put("ok", false);
+                            entry.put("skipped", true);
+                        } else if (value instanceof Throwable) {
+                            String message = ((Throwable) value).getLocalizedMessage();
+
+                            entry.put("ok", false);
+                            entry.put("error", message == null ? value.getClass().getName() : message);
+                            failed++;
+                        } else if (value instanceof Uri) {
+                            JSONObject info = fileInfo((Uri) value);
+
+                            entry.put("ok", true);
+                            entry.put("result", info == null ? JSONObject.NULL : info);
+                        } else {
+                            entry.put("ok", true);
+                            entry.put("result", value);
+                        }
+
+                        array.put(entry);
+                    }
+
+                    JSONObject result = new JSONObject();
+                    result.put("results", array);
+                    result.put("failed", failed);
+
+                    sendResult(result, callbackContext);
+                } catch (Throwable t) {
+                    onError(t, callbackContext);
+                }
+            }
+        });
+    }
+
+    private void deleteFile(@NonNull CordovaArgs args, @NonNull CallbackContext callbackContext) {
+        scheduler.execute(IoScheduler.Lane.metadata, taskKey(args, "uri"), new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    JSONObject params = args.getJSONObject(0);
+                    String uriString = params.getString("uri").trim();
+
+                    Uri uri = Uri.parse(uriString);
+                    int deleted = cordovaInterface.getContext().getContentResolver().delete(uri, null);
+
+                    if (deleted > 0) {
+                        forgetDocument(uri);
+                    }
+
+                    sendResult(deleted, callbackContext);
+                } catch (Throwable t) {
+                    onError(t, callbackContext);
+                }
+            }
+        });
+    }
+
+    private void getInfo(@NonNull CordovaArgs args, @NonNull CallbackContext callbackContext) {
+        scheduler.execute(IoScheduler.Lane.metadata, null, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    JSONObject params = args.getJSONObject(0);
+                    String uriString = params.getString("uri").trim();
+                    String path = params.optString("path").trim();
+
+                    Uri uri = Uri.parse(uriString);
+                    if (!path.equals("")) {
+                        uri = resolveContentUri(uri, path);
+
+                        if (uri == null) {
+                            onError("could not find file: " + uriString + " : " + path, callbackContext);
+                            return;
+                        }
+                    }
+
+                    fileInfo(uri, callbackContext);
+                } catch (Throwable t) {
+                    onError(t, callbackContext);
+                }
+            }
+        });
+    }
+
+    private void getInfoBatch(@NonNull CordovaArgs args, @NonNull CallbackContext callbackContext) {
+        scheduler.execute(IoScheduler.Lane.metadata, null, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    JSONObject params = args.getJSONObject(0);
+                    JSONArray uris = params.optJSONArray("uris");
+                    JSONArray paths = params.optJSONArray("paths");
+
+                    JSONArray results = new JSONArray();
+
+                    if (uris != null) {
+                        for (int i = 0; i < uris.length(); i++) {
+                            JSONObject info = null;
+                            try {
+                                info = fileInfo(Uri.parse(uris.getString(i).trim()));
+                            } catch (Exception e) {
+                                Log.d(getClass().getName(), e.getLocalizedMessage(), e);
+                            }
+
+                            results.put(info == null ? JSONObject.NULL : info);
+                        }
+                    }
+
+                    if (paths != null) {
+                        Uri treeUri = Uri.parse(params.getString("uri").trim());
+
+                        // one children query per distinct parent folder serves all paths inside it
+                        LinkedHashMap<String, List<Integer>> groups = new LinkedHashMap<>();
+                        String[] names = new String[paths.length()];
+                        JSONObject[] infos = new JSONObject[paths.length()];
+
+                        for (int i = 0; i < paths.length(); i++) {
+                            String path = paths.getString(i).trim();
+                            if (path.startsWith("/")) {
+                                path = path.substring(1);
+                            }
+
+                            int index = path.lastIndexOf("/");
+                            String folder = index > 0 ? path.substring(0, index) : "";
+                            names[i] = path.substring(index + 1);
+
+                            List<Integer> group = groups.get(folder);
+                            if (group == null) {
+                                group = new ArrayList<>();
+                                groups.put(folder, group);
+                            }
+
+                            group.add(i);
+                        }
+
+                        for (Map.Entry<String, List<Integer>> group : groups.entrySet()) {
+                            try {
+                                childInfos(treeUri, group.getKey(), group.getValue(), names, infos);
+                            } catch (Exception e) {
+                                Log.d(getClass().getName(), e.getLocalizedMessage(), e);
+                            }
+                        }
+
+                        for (JSONObject info : infos) {
+                            results.put(info == null ? JSONObject.NULL : info);
+                        }
+                    }
+
+                    JSONObject result = new JSONObject();
+                    result.put("results", results);
+
+                    sendResult(result, callbackContext);
+                } catch (Throwable t) {
+                    onError(t, callbackContext);
+                }
+            }
+        });
+    }
+
+    private void getUri(@NonNull CordovaArgs args, @NonNull CallbackContext callbackContext) {
+        scheduler.execute(IoScheduler.Lane.metadata, null, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    JSONObject params = args.getJSONObject(0);
+                    String uriString = params.getString("uri").trim();
+                    String path = params.getString("path").trim();
+
+                    Uri uri = resolveContentUri(Uri.parse(uriString), path);
+
+                    JSONObject result = new JSONObject();
+                    result.put("uri", uri == null ? JSONObject.NULL : uri);
+
+                    sendResult(result, callbackContext);
+                } catch (Throwable t) {
+                    onError(t, callbackContext);
+                }
+            }
+        });
+    }
+
+    private void listFolder(@NonNull CordovaArgs args, @NonNull CallbackContext callbackContext) {
+        scheduler.execute(IoScheduler.Lane.metadata, null, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    JSONObject params = args.getJSONObject(0);
+                    String uriString = params.getString("uri").trim();
+                    String path = params.optString("path").trim();
+                    int offset = Math.max(params.optInt("offset"), 0);
+                    int limit = params.optInt("limit", -1);
+                    String sort = params.optString("sort").trim();
+                    JSONArray columnsArray = params.optJSONArray("columns");
+
+                    Uri treeUri = Uri.parse(uriString);
+                    String parentId = resolveDocumentId(treeUri, path);
+                    if (parentId == null) {
+                        onError("could not find folder: " + uriString + " : " + path, callbackContext);
+                        return;
+                    }
+
+                    List<String> columns = new ArrayList<>();
+                    if (columnsArray == null || columnsArray.length() == 0) {
+                        columns.add("uri");
+                        columns.addAll(Arrays.asList(LIST_COLUMNS));
+                    } else {
+                        for (int i = 0; i < columnsArray.length(); i++) {
+                            String column = columnsArray.getString(i);
+                            if (!column.equals("uri") && !Arrays.asList(LIST_COLUMNS).contains(column)) {
+                                onError("unknown column: " + column, callbackContext);
+                                return;
+                            }
+
+                            columns.add(column);
+                        }
+                    }
+
+                    int total;
+                    List<Object[]> rows = new ArrayList<>();
+                    try (
+                            Cursor cursor = cordovaInterface.getContext().getContentResolver().query(
+                                    DocumentsContract.buildChildDocumentsUriUsingTree(treeUri, parentId),
+                                    LIST_PROJECTION,
+                                    null,
+                                    null,
+                                    null
+                            )
+                    ) {
+                        if (cursor == null) {
+                            onError("could not list folder: " + uriString + " : " + path, callbackContext);
+                            return;
+                        }
+
+                        total = cursor.getCount();
+
+                        if (sort.equals("")) {
+                            // without sorting only the requested page is read from the cursor
+                            if (limit != 0 && cursor.moveToPosition(offset)) {
+                                do {
+                                    rows.add(cursorRow(cursor));
+                                } while ((limit < 0 || rows.size() < limit) && cursor.moveToNext());
+                            }
+                        } else {
+                            while (cursor.moveToNext()) {
+                                rows.add(cursorRow(cursor));
+                            }
+                        }
+                    }
+
+                    if (!sort.equals("")) {
+                        boolean descending = sort.startsWith("-");
+                        final int sortIndex = Arrays.asList(LIST_COLUMNS).indexOf(descending ? sort.substring(1) : sort);
+                        if (sortIndex < 0) {
+                            onError("unknown sort column: " + sort, callbackContext);
+                            return;
+                        }
+
+                        Comparator<Object[]> comparator = new Comparator<Object[]>() {
+                            @Override
+                            public int compare(Object[] a, Object[] b) {
+                                return compareValues(a[sortIndex], b[sortIndex]);
+                            }
+                        };
+
+                        Collections.sort(rows, descending ? Collections.reverseOrder(comparator) : comparator);
+
+                        int end = limit < 0 ? rows.size() : Math.min(rows.size(), offset + limit);
+                        rows = offset >= end ? new ArrayList<Object[]>() : rows.subList(offset, end);
+                    }
+
+                    JSONObject values = new JSONObject();
+                    for (String column : columns) {
+                        JSONArray array = new JSONArray();
+                        int index = Arrays.asList(LIST_COLUMNS).indexOf(column);
+
+                        for (Object[] row : rows) {
+                            if (index < 0) {
+                                array.put(DocumentsContract.buildDocumentUriUsingTree(treeUri, (String) row[0]).toString());
+                            } else {
+                                array.put(row[index] == null ? JSONObject.NULL : row[index]);
+                            }
+                        }
+
+                        values.put(column, array);
+                    }
+
+                    JSONObject result = new JSONObject();
+                    result.put("total", total);
+                    result.put("offset", offset);
+                    result.put("count", rows.size());
+                    result.put("columns", values);
+
+                    sendResult(result, callbackContext);
+                } catch (Throwable t) {
+                    onError(t, callbackContext);
+                }
+            }
+        });
+    }
+
+    /**
+     * Observes a document tree or a MediaStore collection and reports changed URIs as keep-callback
+     * events. The first result carries the watchId for {@link #unwatch}.
+     */
+    private void watch(@NonNull final CordovaArgs args, @NonNull final CallbackContext callbackContext) {
+        scheduler.execute(IoScheduler.Lane.metadata, null, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    JSONObject params = args.getJSONObject(0);
+                    String uriString = params.optString("uri").trim();
+                    final boolean recursive = params.optBoolean("recursive", true);
+
+                    final Watch watch = new Watch(
+                            lastStreamHandle.incrementAndGet(),
+                            callbackContext,
+                            Math.max(params.optLong("debounceMs", 500), 0)
+                    );
+
+                    final Uri observed;
+                    final Uri treeUri;
+                    final String rootId;
+
+                    if (uriString.equals("")) {
+                        observed = mediaCollection(params.optString("mediaCollection", "files").trim());
+                        treeUri = null;
+                        rootId = null;
+                    } else {
+                        treeUri = Uri.parse(uriString);
+                        String path = params.optString("path").trim();
+
+                        rootId = path.equals("") ? treeDocumentId(treeUri) : resolveDocumentId(treeUri, path);
+                        if (rootId == null) {
+                            onError("could not find folder: " + uriString + " : " + path, callbackContext);
+                            return;
+                        }
+
+                        // providers notify on document and children URIs that need not be below the tree URI,
+                        // so everything of the authority is observed and filtered by document ID
+                        observed = new Uri.Builder().scheme(ContentResolver.SCHEME_CONTENT).authority(treeUri.getAuthority()).build();
+                    }
+
+                    // IDs of paths, like primary:DCIM/Camera, start with the ID of their parent
+                    final String childPrefix = rootId == null || rootId.endsWith(":") || rootId.endsWith("/") ? rootId : rootId + "/";
+
+                    // with opaque IDs nested changes cannot be told apart from changes elsewhere
+                    if (recursive && treeUri != null && !childIdsArePaths(treeUri, rootId, childPrefix)) {
+                        onError("recursive watches need a provider with path-like document IDs, watch with recursive: false instead: " + uriString, callbackContext);
+                        return;
+                    }
+
+                    watch.observer = new ContentObserver(null) {
+                        @Override
+                        public void onChange(boolean selfChange) {
+                            onChange(selfChange, null);
+                        }
+
+                        @Override
+                        public void onChange(boolean selfChange, @Nullable Uri uri) {
+                            String changed;
+
+                            if (treeUri == null) {
+                                changed = uri == null ? observed.toString() : uri.toString();
+                            } else {
+                                String documentId = uri == null ? null : changedDocumentId(uri);
+
+                                if (documentId == null) {
+                                    return;
+                                }
+
+                                if (!documentId.equals(rootId) && !(recursive && documentId.startsWith(childPrefix))) {
+                                    return;
+                                }
+
+                                changed = DocumentsContract.buildDocumentUriUsingTree(treeUri, documentId).toString();
+                            }
+
+                            queueChange(watch, changed);
+                        }
+                    };
+
+                    cordovaInterface.getContext().getContentResolver().registerContentObserver(observed, true, watch.observer);
+
+                    synchronized (watches) {
+                        watches.put(watch.id, watch);
+                    }
+
+                    JSONObject result = new JSONObject();
+                    result.put("watchId", watch.id);
+
+                    PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, result);
+                    pluginResult.setKeepCallback(true);
+                    sendResult(pluginResult, callbackContext);
+                } catch (Throwable t) {
+                    onError(t, callbackContext);
+                }
+            }
+        });
+    }
+
+    private void unwatch(@NonNull CordovaArgs args, @NonNull CallbackContext callbackContext) throws JSONException {
+        int watchId = args.getJSONObject(0).getInt("watchId");
+
+        Watch watch;
+        synchronized (watches) {
+            watch = watches.remove(watchId);
+        }
+
+        if (watch == null) {
+            sendResult(0, callbackContext);
+            return;
+        }
+
+        cordovaInterface.getContext().getContentResolver().unregisterContentObserver(watch.observer);
+
+        // closes the watch's own callback
+        JSONObject event = new JSONObject();
+        event.put("event", "closed");
+        sendResult(new PluginResult(PluginResult.Status.OK, event), watch.callbackContext);
+
+        sendResult(1, callbackContext);
+    }
+
+    private void unwatchAll() {
+        List<Watch> removed;
+        synchronized (watches) {
+            removed = new ArrayList<>(watches.values());
+            watches.clear();
+        }
+
+        for (Watch watch : removed) {
+            cordovaInterface.getContext().getContentResolver().unregisterContentObserver(watch.observer);
+        }
+    }
+
+    /**
+     * Whether the IDs of the folder's children start with childPrefix. An empty folder gives no
+     * answer and counts as path-like.
+     */
+    private boolean childIdsArePaths(@NonNull Uri treeUri, @NonNull String documentId, @NonNull String childPrefix) {
+        try (
+                Cursor cursor = cordovaInterface.getContext().getContentResolver().query(
+                        DocumentsContract.buildChildDocumentsUriUsingTree(treeUri, documentId),
+                        new String[]{DocumentsContract.Document.COLUMN_DOCUMENT_ID},
+                        null,
+                        null,
+                        null
+                )
+        ) {
+            if (cursor == null) {
+                return true;
+            }
+
+            // a few children are enough, a provider does not mix ID schemes
+            for (int i = 0; i < 8 && cursor.moveToNext(); i++) {
+                String childId = cursor.getString(0);
+                if (childId == null || !childId.startsWith(childPrefix)) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    private static @Nullable String changedDocumentId(@NonNull Uri uri) {
+        List<String> segments = uri.getPathSegments();
+
+        // .../document/<id>[/children] or .../tree/<id>[/document/<id>][/children]
+        for (int i = segments.size() - 2; i >= 0; i--) {
+            if (segments.get(i).equals("document") || segments.get(i).equals("tree")) {
+                return segments.get(i + 1);
+            }
+        }
+
+        return null;
+    }
+
+    private void queueChange(@NonNull final Watch watch, @NonNull String uri) {
+        synchronized (watch) {
+            watch.lastChange = SystemClock.uptimeMillis();
+
+            if (watch.pending.size() < 1000) {
+                watch.pending.add(uri);
+            } else {
+                watch.overflow = true;
+            }
+
+            if (watch.scheduled) {
+                return;
+            }
+
+            watch.scheduled = true;
+        }
+
+        final Handler handler = new Handler(Looper.getMainLooper());
+        handler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                JSONArray uris = new JSONArray();
+                boolean overflow;
+
+                synchronized (watch) {
+                    // each change restarts the wait
+                    long remaining = watch.lastChange + watch.debounceMs - SystemClock.uptimeMillis();
+                    if (remaining > 0) {
+                        handler.postDelayed(this, remaining);
+                        return;
+                    }
+
+                    for (String pending : watch.pending) {
+                        uris.put(pending);
+                    }
+
+                    overflow = watch.overflow;
+                    watch.pending.clear();
+                    watch.overflow = false;
+                    watch.scheduled = false;
+                }
+
+                synchronized (watches) {
+                    if (watches.get(watch.id) != watch) {
+                        return;
+                    }
+                }
+
+                try {
+                    JSONObject event = new JSONObject();
+                    event.put("event", "change");
+                    event.put("watchId", watch.id);
+                    event.put("uris", uris);
+                    event.put("overflow", overflow);
+
+                    PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, event);
+                    pluginResult.setKeepCallback(true);
+                    watch.callbackContext.sendPluginResult(pluginResult);
+                } catch (JSONException e) {
+                    Log.d(getClass().getName(), e.getLocalizedMessage(), e);
+                }
+            }
+        }, watch.debounceMs);
+    }
+
+    /**
+     * Returns a URL under the app's own origin that streams the document to the WebView, so media
+     * elements and fetch can read and seek it without the bytes crossing the bridge.
+     */
+    private void getWebUrl(@NonNull final CordovaArgs args, @NonNull final CallbackContext callbackContext) {
+        scheduler.execute(IoScheduler.Lane.metadata, null, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    JSONObject params = args.getJSONObject(0);
+                    final Uri uri = Uri.parse(params.getString("uri").trim());
+                    String type = params.optString("type").trim();
+
+                    // asking the provider is IPC, done here rather than on the UI thread
+                    if (type.equals("")) {
+                        type = cordovaInterface.getContext().getContentResolver().getType(uri);
+                    }
+
+                    final String resolvedType = type;
+
+                    cordovaInterface.getActivity().runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                JSONObject result = new JSONObject();
+                                result.put("url", documentServer().register(uri, resolvedType));
+
+                                callbackContext.success(result);
+                            } catch (Throwable t) {
+                                onError(t, callbackContext);
+                            }
+                        }
+                    });
+                } catch (Throwable t) {
+                    onError(t, callbackContext);
+                }
+            }
+        });
+    }
+
+    private void revokeWebUrl(@NonNull CordovaArgs args, @NonNull CallbackContext callbackContext) throws JSONException {
+        String url = args.getJSONObject(0).getString("url").trim();
+        DocumentServer server = documentServer;
+
+        JSONObject result = new JSONObject();
+        result.put("revoked", server != null && server.revoke(url));
+
+        sendResult(result, callbackContext);
+    }
+
+    /**
+     * Creates the document server on first use and puts a WebView client in front of the current
+     * one that answers its requests and delegates everything else. Must run on the UI thread.
+     */
+    private @NonNull DocumentServer documentServer() {
+        if (documentServer != null) {
+            return documentServer;
+        }
+
+        if (!(cordovaWebView.getEngine() instanceof SystemWebViewEngine)) {
+            throw new UnsupportedOperationException("web URLs need the system WebView engine");
+        }
+
+        SystemWebViewEngine engine = (SystemWebViewEngine) cordovaWebView.getEngine();
+        final DocumentServer server = new DocumentServer(
+                cordovaInterface.getContext().getContentResolver(),
+                preferences.getString("scheme", "https"),
+                preferences.getString("hostname", "localhost")
+        );
+
+        WebView webView = (WebView) engine.getView();
+        WebViewClient current = webView.getWebViewClient();
+        if (!(current instanceof SystemWebViewClient)) {
+            throw new UnsupportedOperationException("web URLs need Cordova's WebView client, found: " + (current == null ? null : current.getClass().getName()));
+        }
+
+        webView.setWebViewClient(new DocumentWebViewClient(engine, (SystemWebViewClient) current, server));
+
+        documentServer = server;
+
+        return server;
+    }
+
+    /**
+     * Returns an encoded thumbnail that fits into width x height. Thumbnails are cached under a key
+     * made of the URI, lastModified and size of the document and the requested output, so the
+     * provider is only asked again once the document changes.
+     */
+    private void getThumbnail(@NonNull final CordovaArgs args, @NonNull final CallbackContext callbackContext) {
+        final CancellationSignal signal = startOperation(args);
+
+        scheduler.execute(IoScheduler.Lane.bulk, taskKey(args, "uri"), new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    signal.throwIfCanceled();
+
+                    JSONObject params = args.getJSONObject(0);
+                    Uri uri = Uri.parse(params.getString("uri").trim());
+                    int width = Math.max(params.optInt("width", 256), 1);
+                    int height = Math.max(params.optInt("height", width), 1);
+                    String format = params.optString("format", "jpeg").trim();
+                    int quality = Math.min(Math.max(params.optInt("quality", 80), 0), 100);
+
+                    Bitmap.CompressFormat compressFormat;
+                    switch (format) {
+                        case "png":
+                            compressFormat = Bitmap.CompressFormat.PNG;
+                            break;
+                        case "webp":
+                            compressFormat = ImageTransform.webp();
+                            break;
+                        case "jpeg":
+                        case "jpg":
+                        case "":
+                            format = "jpeg";
+                            compressFormat = Bitmap.CompressFormat.JPEG;
+                            break;
+                        default:
+                            onError("unknown format: " + format, callbackContext);
+                            return;
+                    }
+
+                    JSONObject info = fileInfo(uri);
+                    if (info == null) {
+                        onError("could not open file: " + uri, callbackContext);
+                        return;
+                    }
+
+                    String key = uri + "\n" + info.optLong("lastModified") + "\n" + info.optLong("size") + "\n" +
+                            width + "x" + height + "\n" + format + "\n" + quality;
+
+                    byte[] data = thumbnails().get(key);
+                    boolean cached = data != null;
+
+                    if (data == null) {
+                        Bitmap bitmap = loadThumbnail(uri, width, height, signal);
+
+                        try (ByteArrayOutputStream outputStream = new ByteArrayOutputStream()) {
+                            bitmap.compress(compressFormat, quality, outputStream);
+                            data = outputStream.toByteArray();
+                        } finally {
+                            bitmap.recycle();
+                        }
+
+                        thumbnails().put(key, data);
+                    }
+
+                    JSONObject result = new JSONObject();
+                    result.put("type", "image/" + format);
+                    result.put("cached", cached);
+
+                    sendData(data, result, params.optBoolean("binary"), callbackContext);
+                } catch (Throwable t) {
+                    onError(t, callbackContext);
+                } finally {
+                    finishOperation(args, signal);
+                }
+            }
+        });
+    }
+
+    /**
+     * Asks the provider for a thumbnail first: DocumentsProviders and MediaStore usually keep one
+     * that is much cheaper than decoding the document. Falls back to a subsampled decode.
+     */
+    private @NonNull Bitmap loadThumbnail(@NonNull Uri uri, final int width, final int height, @NonNull CancellationSignal signal) throws IOException {
+        ContentResolver contentResolver = cordovaInterface.getContext().getContentResolver();
+
+        Bitmap bitmap = null;
+        try {
+            if (DocumentsContract.isDocumentUri(cordovaInterface.getContext(), uri)) {
+                bitmap = DocumentsContract.getDocumentThumbnail(contentResolver, uri, new Point(width, height), signal);
+            } else {
+                bitmap = contentResolver.loadThumbnail(uri, new Size(width, height), signal);
+            }
+        } catch (OperationCanceledException e) {
+            throw e;
+        } catch (Exception e) {
+            Log.d(getClass().getName(), "no provider thumbnail, decoding instead: " + uri, e);
+        }
+
+        if (bitmap == null) {
+            signal.throwIfCanceled();
+
+            bitmap = ImageDecoder.decodeBitmap(ImageDecoder.createSource(contentResolver, uri), new ImageDecoder.OnHeaderDecodedListener() {
+                @Override
+                public void onHeaderDecoded(@NonNull ImageDecoder decoder, @NonNull ImageDecoder.ImageInfo info, @NonNull ImageDecoder.Source source) {
+                    Size size = info.getSize();
+
+                    int sampleSize = 1;
+                    while (size.getWidth() / (sampleSize * 2) >= width && size.getHeight() / (sampleSize * 2) >= height) {
+                        sampleSize *= 2;
+                    }
+
+                    decoder.setTargetSampleSize(sampleSize);
+                    decoder.setAllocator(ImageDecoder.ALLOCATOR_SOFTWARE);
+                }
+            });
+        }
+
+        // providers may return something larger than asked for
+        float scale = Math.min((float) width / bitmap.getWidth(), (float) height / bitmap.getHeight());
+        if (scale >= 1) {
+            return bitmap;
+        }
+
+        Bitmap scaled = Bitmap.createScaledBitmap(
+                bitmap,
+                Math.max(Math.round(bitmap.getWidth() * scale), 1),
+                Math.max(Math.round(bitmap.getHeight() * scale), 1),
+                true
+        );
+
+        if (scaled != bitmap) {
+            bitmap.recycle();
+        }
+
+        return scaled;
+    }
+
+    /**
+     * Reads an image downscaled and re-encoded as params describe, see {@link ImageTransform}. With
+     * keepExif the image goes through a temporary file, which ExifInterface needs to save into.
+     */
+    private void readImage(@NonNull final CordovaArgs args, @NonNull final CallbackContext callbackContext) {
+        final CancellationSignal signal = startOperation(args);
+
+        scheduler.execute(IoScheduler.Lane.bulk, taskKey(args, "uri"), new Runnable() {
+            @Override
+            public void run() {
+                File temp = null;
+
+                try {
+                    signal.throwIfCanceled();
+
+                    JSONObject params = args.getJSONObject(0);
+                    final Uri uri = Uri.parse(params.getString("uri").trim());
+                    final ContentResolver contentResolver = cordovaInterface.getContext().getContentResolver();
+
+                    ImageTransform transform = ImageTransform.parse(params, contentResolver.getType(uri));
+                    ImageTransform.Source source = new ImageTransform.Source() {
+                        @Override
+                        public @NonNull InputStream open() throws IOException {
+                            InputStream inputStream = contentResolver.openInputStream(uri);
+                            if (inputStream == null) {
+                                throw new FileNotFoundException("Could not open file: " + uri);
+                            }
+
+                            return inputStream;
+                        }
+                    };
+
+                    ImageTransform.Image image;
+                    byte[] data;
+
+                    if (transform.keepExif) {
+                        temp = File.createTempFile("saf_mediastore_image", "." + transform.format, cordovaInterface.getContext().getCacheDir());
+
+                        try (OutputStream outputStream = new FileOutputStream(temp)) {
+                            image = transform.apply(source, outputStream, bitmaps(), signal);
+                        }
+
+                        transform.saveExif(image, new ExifInterface(temp));
+
+                        try (InputStream inputStream = new FileInputStream(temp)) {
+                            data = readFully(inputStream, arrayLength(temp.length(), "image too large"), signal);
+                        }
+                    } else {
+                        try (ByteArrayOutputStream outputStream = new ByteArrayOutputStream()) {
+                            image = transform.apply(source, outputStream, bitmaps(), signal);
+                            data = outputStream.toByteArray();
+                        }
+                    }
+
+                    JSONObject result = new JSONObject();
+                    result.put("type", transform.mimeType());
+                    result.put("width", image.width);
+                    result.put("height", image.height);
+
+                    sendData(data, result, params.optBoolean("binary"), callbackContext);
+                } catch (Throwable t) {
+                    onError(t, callbackContext);
+                } finally {
+                    if (temp != null && !temp.delete()) {
+                        Log.d(getClass().getName(), "could not delete: " + temp);
+                    }
+
+                    finishOperation(args, signal);
+                }
+            }
+        });
+    }
+
+    private synchronized @NonNull BitmapPool bitmaps() {
+        if (bitmaps == null) {
+            bitmaps = new BitmapPool(Math.min(
+                    Math.max(preferences.getInteger("SafMediastoreBitmapPoolMB", 32), 0) * 1024L * 1024L,
+                    Runtime.getRuntime().maxMemory() / 8
+            ));
+        }
+
+        return bitmaps;
+    }
+
+    private synchronized @NonNull ThumbnailCache thumbnails() {
+        if (thumbnails == null) {
+            thumbnails = new ThumbnailCache(
+                    new File(cordovaInterface.getContext().getCacheDir(), "saf_mediastore_thumbnails"),
+                    (int) Math.min(Runtime.getRuntime().maxMemory() / 32, 16 * 1024 * 1024),
+                    Math.max(preferences.getInteger("SafMediastoreThumbnailCacheMB", 50), 1) * 1024L * 1024L
+            );
+        }
+
+        return thumbnails;
+    }
+
+    /**
+     * Pages through a MediaStore collection. Filtering, sorting and paging are passed to the
+     * provider as query args so only the requested page is read, and the page is returned in the
+     * same columnar form as {@link #listFolder}.
+     */
+    private void queryMedia(@NonNull CordovaArgs args, @NonNull CallbackContext callbackContext) {
+        scheduler.execute(IoScheduler.Lane.metadata, null, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    JSONObject params = args.getJSONObject(0);
+                    int offset = Math.max(params.optInt("offset"), 0);
+                    int limit = params.optInt("limit", -1);
+                    String sort = params.optString("sort").trim();
+                    String relativePath = params.optString("relativePath").trim();
+                    JSONArray mimeTypes = params.optJSONArray("mimeTypes");
+                    JSONObject dateRange = params.optJSONObject("dateRange");
+                    JSONArray columnsArray = params.optJSONArray("columns");
+
+                    Uri collection = mediaCollection(params.optString("collection", "files").trim());
+
+                    List<String> columns = new ArrayList<>();
+                    if (columnsArray == null || columnsArray.length() == 0) {
+                        columns.add("uri");
+                        columns.addAll(Arrays.asList(MEDIA_COLUMNS));
+                    } else {
+                        for (int i = 0; i < columnsArray.length(); i++) {
+                            String column = columnsArray.getString(i);
+                            if (!column.equals("uri") && !Arrays.asList(MEDIA_COLUMNS).contains(column)) {
+                                onError("unknown column: " + column, callbackContext);
+                                return;
+                            }
+
+                            columns.add(column);
+                        }
+                    }
+
+                    StringBuilder selection = new StringBuilder();
+                    List<String> selectionArgs = new ArrayList<>();
+
+                    if (!relativePath.equals("")) {
+                        if (relativePath.startsWith("/")) {
+                            relativePath = relativePath.substring(1);
+                        }
+
+                        if (!relativePath.endsWith("/")) {
+                            relativePath += "/";
+                        }
+
+                        if (params.optBoolean("includeSubfolders")) {
+                            selection.append(MediaStore.MediaColumns.RELATIVE_PATH).append(" LIKE ? ESCAPE '\\'");
+                            selectionArgs.add(relativePath.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%");
+                        } else {
+                            selection.append(MediaStore.MediaColumns.RELATIVE_PATH).append(" = ?");
+                            selectionArgs.add(relativePath);
+                        }
+                    }
+
+                    if (mimeTypes != null && mimeTypes.length() > 0) {
+                        if (selection.length() > 0) {
+                            selection.append(" AND ");
+                        }
+
+                        selection.append("(");
+                        for (int i = 0; i < mimeTypes.length(); i++) {
+                            String mimeType = mimeTypes.getString(i).trim();
+
+                            if (i > 0) {
+                                selection.append(" OR ");
+                            }
+
+                            if (mimeType.endsWith("/*")) {
+                                selection.append(MediaStore.MediaColumns.MIME_TYPE).append(" LIKE ?");
+                                selectionArgs.add(mimeType.substring(0, mimeType.length() - 1) + "%");
+                            } else {
+                                selection.append(MediaStore.MediaColumns.MIME_TYPE).append(" = ?");
+                                selectionArgs.add(mimeType);
+                            }
+                        }
+                        selection.append(")");
+                    }
+
+                    // dateRange is in milliseconds like lastModified elsewhere, MediaStore stores seconds
+                    if (dateRange != null) {
+                        if (dateRange.has("from")) {
+                            if (selection.length() > 0) {
+                                selection.append(" AND ");
+                            }
+
+                            selection.append(MediaStore.MediaColumns.DATE_MODIFIED).append(" >= ?");
+                            selectionArgs.add(String.valueOf(dateRange.getLong("from") / 1000));
+                        }
+
+                        if (dateRange.has("to")) {
+                            if (selection.length() > 0) {
+                                selection.append(" AND ");
+                            }
+
+                            selection.append(MediaStore.MediaColumns.DATE_MODIFIED).append(" <= ?");
+                            selectionArgs.add(String.valueOf(dateRange.getLong("to") / 1000));
+                        }
+                    }
+
+                    Bundle queryArgs = new Bundle();
+                    if (selection.length() > 0) {
+                        queryArgs.putString(ContentResolver.QUERY_ARG_SQL_SELECTION, selection.toString());
+                        queryArgs.putStringArray(ContentResolver.QUERY_ARG_SQL_SELECTION_ARGS, selectionArgs.toArray(new String[0]));
+                    }
+
+                    if (!sort.equals("")) {
+                        boolean descending = sort.startsWith("-");
+                        int sortIndex = Arrays.asList(MEDIA_COLUMNS).indexOf(descending ? sort.substring(1) : sort);
+                        if (sortIndex < 0) {
+                            onError("unknown sort column: " + sort, callbackContext);
+                            return;
+                        }
+
+                        queryArgs.putStringArray(ContentResolver.QUERY_ARG_SORT_COLUMNS, new String[]{MEDIA_PROJECTION[sortIndex]});
+                        queryArgs.putInt(
+                                ContentResolver.QUERY_ARG_SORT_DIRECTION,
+                                descending ? ContentResolver.QUERY_SORT_DIRECTION_DESCENDING : ContentResolver.QUERY_SORT_DIRECTION_ASCENDING
+                        );
+                    }
+
+                    if (limit >= 0) {
+                        queryArgs.putInt(ContentResolver.QUERY_ARG_LIMIT, limit);
+                    }
+
+                    if (offset > 0) {
+                        queryArgs.putInt(ContentResolver.QUERY_ARG_OFFSET, offset);
+                    }
+
+                    int total = -1;
+                    List<Object[]> rows = new ArrayList<>();
+                    try (Cursor cursor = queryPage(collection, queryArgs)) {
+                        if (cursor == null) {
+                            onError("could not query: " + collection, callbackContext);
+                            return;
+                        }
+
+                        Bundle extras = cursor.getExtras();
+                        if (extras.containsKey(ContentResolver.EXTRA_TOTAL_COUNT)) {
+                            total = extras.getInt(ContentResolver.EXTRA_TOTAL_COUNT);
+                        }
+
+                        // providers that ignore the paging args return everything
+                        String[] honored = extras.getStringArray(ContentResolver.EXTRA_HONORED_ARGS);
+                        boolean paged = honored != null && Arrays.asList(honored).contains(ContentResolver.QUERY_ARG_OFFSET);
+
+                        if (limit != 0 && cursor.moveToPosition(paged ? 0 : offset)) {
+                            do {
+                                rows.add(cursorRow(cursor));
+                            } while ((limit < 0 || rows.size() < limit) && cursor.moveToNext());
+                        }
+                    }
+
+                    JSONObject result = new JSONObject();
+                    result.put("total", total);
+                    result.put("offset", offset);
+                    result.put("count", rows.size());
+                    result.put("columns", mediaColumns(collection, rows, columns));
+
+                    sendResult(result, callbackContext);
+                } catch (Throwable t) {
+                    onError(t, callbackContext);
+                }
+            }
+        });
+    }
+
+    /**
+     * Queries a page of a MediaStore collection. A provider that honours QUERY_ARG_LIMIT but not
+     * QUERY_ARG_OFFSET would return the first rows rather than the page, so it is asked again for
+     * every row and the caller skips to the offset itself.
+     */
+    private @Nullable Cursor queryPage(@NonNull Uri collection, @NonNull Bundle queryArgs) {
+        ContentResolver contentResolver = cordovaInterface.getContext().getContentResolver();
+
+        Cursor cursor = contentResolver.query(collection, MEDIA_PROJECTION, queryArgs, null);
+        if (cursor == null || !queryArgs.containsKey(ContentResolver.QUERY_ARG_OFFSET)) {
+            return cursor;
+        }
+
+        String[] honored = cursor.getExtras().getStringArray(ContentResolver.EXTRA_HONORED_ARGS);
+        List<String> honoredArgs = honored == null ? Collections.<String>emptyList() : Arrays.asList(honored);
+        if (honoredArgs.contains(ContentResolver.QUERY_ARG_OFFSET) || !honoredArgs.contains(ContentResolver.QUERY_ARG_LIMIT)) {
+            return cursor;
+        }
+
+        cursor.close();
+
+        Bundle unpaged = new Bundle(queryArgs);
+        unpaged.remove(ContentResolver.QUERY_ARG_LIMIT);
+        unpaged.remove(ContentResolver.QUERY_ARG_OFFSET);
+
+        return contentResolver.query(collection, MEDIA_PROJECTION, unpaged, null);
+    }
+
+    /**
+     * Returns the rows of a MediaStore collection that were added or modified since a token from a
+     * previous call, and the IDs deleted since then. The first call returns every row.
+     * <p>
+     * On API 30+ the token holds the generation and version of every external volume, since
+     * generations are only comparable within a volume, and rows are selected by VOLUME_NAME and
+     * GENERATION_MODIFIED. A volume that was not there before has all its rows returned. A version
+     * change of any volume, e.g. after a data wipe, invalidates generations and returns every row
+     * again. Earlier releases select by DATE_MODIFIED, which misses files written with an old
+     * modification time. Deletes are found by diffing the sorted IDs against the set stored by the previous call, kept
+     * delta encoded in the no-backup dir together with the token it belongs to. Only one ID set is
+     * kept per collection, so a token other than the latest one (a retry after the app died, or a
+     * second consumer) gets every row again rather than a delta that would miss deletes.
+     */
+    private void getMediaChanges(@NonNull final CordovaArgs args, @NonNull final CallbackContext callbackContext) throws JSONException {
+        final String collectionName = args.getJSONObject(0).optString("collection", "files").trim();
+
+        scheduler.execute(IoScheduler.Lane.metadata, "mediaChanges:" + collectionName, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    JSONObject params = args.getJSONObject(0);
+                    String since = params.optString("sinceGeneration").trim();
+
+                    Uri collection = mediaCollection(collectionName);
+                    ContentResolver contentResolver = cordovaInterface.getContext().getContentResolver();
+
+                    File idFile = new File(cordovaInterface.getContext().getNoBackupFilesDir(), "saf_mediastore_" + collectionName + ".ids");
+
+                    // only a token the stored ID set belongs to can give a delta
+                    long[] previous = since.equals("") ? null : readIds(idFile, since);
+
+                    String token;
+                    String selection = null;
+                    List<String> selectionArgs = new ArrayList<>();
+
+                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+                        // read before querying so changes made meanwhile are returned again next time
+                        TreeMap<String, String[]> volumes = new TreeMap<>();
+                        for (String volume : MediaStore.getExternalVolumeNames(cordovaInterface.getContext())) {
+                            volumes.put(volume, new String[]{
+                                    String.valueOf(MediaStore.getGeneration(cordovaInterface.getContext(), volume)),
+                                    MediaStore.getVersion(cordovaInterface.getContext(), volume)
+                            });
+                        }
+
+                        token = mediaToken(volumes);
+
+                        Map<String, String[]> before = previous == null ? null : parseMediaToken(since);
+                        if (before != null) {
+                            StringBuilder clauses = new StringBuilder();
+                            for (Map.Entry<String, String[]> volume : volumes.entrySet()) {
+                                String[] old = before.get(volume.getKey());
+
+                                if (old != null && !old[1].equals(volume.getValue()[1])) {
+                                    clauses = null;
+                                    break;
+                                }
+
+                                if (clauses.length() > 0) {
+                                    clauses.append(" OR ");
+                                }
+
+                                selectionArgs.add(volume.getKey());
+                                if (old == null) {
+                                    clauses.append("(" + MediaStore.MediaColumns.VOLUME_NAME + " = ?)");
+                                } else {
+                                    clauses.append("(" + MediaStore.MediaColumns.VOLUME_NAME + " = ? AND " + MediaStore.MediaColumns.GENERATION_MODIFIED + " > ?)");
+                                    selectionArgs.add(old[0]);
+                                }
+                            }
+
+                            if (clauses != null && clauses.length() > 0) {
+                                selection = clauses.toString();
+                            }
+                        }
+                    } else {
+                        token = "d:" + (System.currentTimeMillis() / 1000 - 1);
+
+                        if (previous != null && since.startsWith("d:")) {
+                            selection = MediaStore.MediaColumns.DATE_MODIFIED + " >= ?";
+                            selectionArgs.add(since.substring(2));
+                        }
+                    }
+
+                    if (selection == null) {
+                        previous = null;
+                        selectionArgs.clear();
+                    }
+
+                    List<Object[]> rows = new ArrayList<>();
+                    try (Cursor cursor = contentResolver.query(collection, MEDIA_PROJECTION, selection, selectionArgs.toArray(new String[0]), MediaStore.MediaColumns._ID)) {
+                        if (cursor == null) {
+                            onError("could not query: " + collection, callbackContext);
+                            return;
+                        }
+
+                        while (cursor.moveToNext()) {
+                            rows.add(cursorRow(cursor));
+                        }
+                    }
+
+                    long[] ids;
+                    try (Cursor cursor = contentResolver.query(collection, new String[]{MediaStore.MediaColumns._ID}, null, null, MediaStore.MediaColumns._ID)) {
+                        if (cursor == null) {
+                            onError("could not query: " + collection, callbackContext);
+                            return;
+                        }
+
+                        ids = new long[cursor.getCount()];
+                        int count = 0;
+                        while (cursor.moveToNext() && count < ids.length) {
+                            ids[count++] = cursor.getLong(0);
+                        }
+
+                        if (count < ids.length) {
+                            ids = Arrays.copyOf(ids, count);
+                        }
+                    }
+
+                    JSONArray deleted = new JSONArray();
+                    if (previous != null) {
+                        // both are sorted, walk them side by side
+                        int j = 0;
+                        for (long id : previous) {
+                            while (j < ids.length && ids[j] < id) {
+                                j++;
+                            }
+
+                            if (j >= ids.length || ids[j] != id) {
+                                deleted.put(id);
+                            }
+                        }
+                    }
+
+                    writeIds(idFile, token, ids);
+
+                    List<String> columns = new ArrayList<>();
+                    columns.add("uri");
+                    columns.addAll(Arrays.asList(MEDIA_COLUMNS));
+
+                    JSONObject result = new JSONObject();
+                    result.put("generation", token);
+                    result.put("full", selection == null);
+                    result.put("count", rows.size());
+                    result.put("columns", mediaColumns(collection, rows, columns));
+                    result.put("deleted", deleted);
+
+                    sendResult(result, callbackContext);
+                } catch (Throwable t) {
+                    onError(t, callbackContext);
+                }
+            }
+        });
+    }
+
+    /**
+     * Encodes volume name to {generation, version} as a getMediaChanges token.
+     */
+    private static @NonNull String mediaToken(@NonNull TreeMap<String, String[]> volumes) {
+        StringBuilder token = new StringBuilder("g:");
+        for (Map.Entry<String, String[]> volume : volumes.entrySet()) {
+            if (token.length() > 2) {
+                token.append(',');
+            }
+
+            token.append(Uri.encode(volume.getKey())).append('=').append(volume.getValue()[0]).append('=').append(Uri.encode(volume.getValue()[1]));
+        }
+
+        return token.toString();
+    }
+
+    private static @Nullable Map<String, String[]> parseMediaToken(@NonNull String token) {
+        if (!token.startsWith("g:")) {
+            return null;
+        }
+
+        Map<String, String[]> volumes = new HashMap<>();
+        for (String entry : token.substring(2).split(",")) {
+            String[] parts = entry.split("=", -1);
+            if (parts.length != 3) {
+                return null;
+            }
+
+            volumes.put(Uri.decode(parts[0]), new String[]{parts[1], Uri.decode(parts[2])});
+        }
+
+        return volumes;
+    }
+
+    /**
+     * Returns the ID set stored by {@link #writeIds}, or null if there is none or it was stored for
+     * a different token.
+     */
+    private static @Nullable long[] readIds(@NonNull File file, @NonNull String token) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+
+        long[] ids = new long[1024];
+        int count = 0;
+
+        try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (!inputStream.readUTF().equals(token)) {
+                return null;
+            }
+
+            long id = 0;
+            while (true) {
+                long delta = 0;
+                int shift = 0;
+                int b;
+
+                do {
+                    b = inputStream.read();
+                    if (b < 0) {
+                        if (shift > 0) {
+                            throw new EOFException("Truncated ID set: " + file);
+                        }
+
+                        return Arrays.copyOf(ids, count);
+                    }
+
+                    delta |= (long) (b & 0x7f) << shift;
+                    shift += 7;
+                } while ((b & 0x80) != 0);
+
+                id += delta;
+
+                if (count == ids.length) {
+                    ids = Arrays.copyOf(ids, count * 2);
+                }
+
+                ids[count++] = id;
+            }
+        }
+    }
+
+    private static void writeIds(@NonNull File file, @NonNull String token, @NonNull long[] ids) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+
+        try (DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            outputStream.writeUTF(token);
+
+            long previous = 0;
+            for (long id : ids) {
+                long delta = id - previous;
+                previous = id;
+
+                while ((delta & ~0x7fL) != 0) {
+                    outputStream.write((int) (delta & 0x7f) | 0x80);
+                    delta >>>= 7;
+                }
+
+                outputStream.write((int) delta);
+            }
+        }
+
+        if (!temp.renameTo(file)) {
+            throw new IOException("Could not write: " + file);
+        }
+    }
+
+    /**
+     * Turns rows of MEDIA_PROJECTION into one array per column, with dates in milliseconds.
+     */
+    private static @NonNull JSONObject mediaColumns(@NonNull Uri collection, @NonNull List<Object[]> rows, @NonNull List<String> columns) throws JSONException {
+        JSONObject values = new JSONObject();
+
+        for (String column : columns) {
+            JSONArray array = new JSONArray();
+            int index = Arrays.asList(MEDIA_COLUMNS).indexOf(column);
+
+            for (Object[] row : rows) {
+                Object value = index < 0 ? ContentUris.withAppendedId(collection, (Long) row[0]).toString() : row[index];
+
+                if (value instanceof Long && (column.equals("dateModified") || column.equals("dateAdded"))) {
+                    value = (Long) value * 1000;
+                }
+
+                array.put(value == null ? JSONObject.NULL : value);
+            }
+
+            values.put(column, array);
+        }
+
+        return values;
+    }
+
+    /**
+     * Runs on the metadata lane: sizing the thumbnail directory lists it and the metadata stats
+     * query SQLite.
+     */
+    private void getCacheStats(@NonNull final CordovaArgs args, @NonNull final CallbackContext callbackContext) {
+        scheduler.execute(IoScheduler.Lane.metadata, null, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    JSONObject params = args.optJSONObject(0);
+                    boolean clear = params != null && params.optBoolean("clear");
+
+                    JSONObject result = new JSONObject();
+                    synchronized (documentIds) {
+                        result.put("hits", documentIdHits);
+                        result.put("misses", documentIdMisses);
+                        result.put("size", documentIds.size());
+                        result.put("maxSize", documentIds.maxSize);
+
+                        if (clear) {
+                            documentIds.clear();
+                            documentIdHits = 0;
+                            documentIdMisses = 0;
+                        }
+                    }
+
+                    result.put("thumbnails", thumbnails().stats());
+                    if (clear) {
+                        thumbnails().clear();
+                    }
+
+                    result.put("bitmapPoolBytes", bitmaps().size());
+                    if (clear) {
+                        bitmaps().clear();
+                    }
+
+                    result.put("metadata", metadataCache().stats());
+                    if (clear) {
+                        metadataCache().clear();
+                    }
+
+                    sendResult(result, callbackContext);
+                } catch (Throwable t) {
+                    onError(t, callbackContext);
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs entirely in the walk pool, so a walk does not hold a bulk lane thread while it waits for
+     * its folders: the task that started it works through folders like any other walker.
+     */
+    private void walkTree(@NonNull final CordovaArgs args, @NonNull final CallbackContext callbackContext) {
+        final CancellationSignal signal = startOperation(args);
+
+        walkPool().execute(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                try {
+                    signal.throwIfCanceled();
+
+                    JSONObject params = args.getJSONObject(0);
+                    Uri treeUri = Uri.parse(params.getString("uri").trim());
+                    String path = params.optString("path").trim();
+                    String nameGlob = params.optString("nameGlob").trim();
+                    JSONArray mimeTypesArray = params.optJSONArray("mimeTypes");
+
+                    String[] mimeTypes = null;
+                    if (mimeTypesArray != null && mimeTypesArray.length() > 0) {
+                        mimeTypes = new String[mimeTypesArray.length()];
+                        for (int i = 0; i < mimeTypes.length; i++) {
+                            mimeTypes[i] = mimeTypesArray.getString(i);
+                        }
+                    }
+
+                    String rootId = resolveDocumentId(treeUri, path);
+                    if (rootId == null) {
+                        onError("could not find folder: " + treeUri + " : " + path, callbackContext);
+                        return;
+                    }
+
+                    Walk walk = new Walk(
+                            treeUri,
+                            params.optInt("maxDepth", -1),
+                            nameGlob.equals("") ? null : globPattern(nameGlob),
+                            mimeTypes,
+                            params.optLong("modifiedAfter", 0),
+                            params.optBoolean("includeFolders"),
+                            Math.max(params.optInt("batchSize", 200), 1),
+                            callbackContext,
+                            signal
+                    );
+
+                    long start = System.currentTimeMillis();
+                    new WalkTask(walk, rootId, "", 0).invoke();
+                    signal.throwIfCanceled();
+
+                    JSONObject result = new JSONObject();
+                    synchronized (walk) {
+                        if (walk.rootError != null) {
+                            onError("could not list folder: " + treeUri + " : " + path + ": " + walk.rootError, callbackContext);
+                            return;
+                        }
+
+                        sendWalkBatch(walk);
+
+                        result.put("count", walk.count);
+                        result.put("folders", walk.folders);
+                        result.put("errors", walk.errors);
+                    }
+
+                    result.put("elapsed", System.currentTimeMillis() - start);
+
+                    sendResult(result, callbackContext);
+                } catch (Throwable t) {
+                    onError(t, callbackContext);
+                } finally {
+                    finishOperation(args, signal);
+                }
+            }
+        });
+    }
+
+    private synchronized @NonNull ForkJoinPool walkPool() {
+        if (walkPool == null) {
+            walkPool = new ForkJoinPool(Math.max(preferences.getInteger("SafMediastoreWalkThreads", 4), 1));
+        }
+
+        return walkPool;
+    }
+
+    private void addWalkEntry(@NonNull Walk walk, @NonNull JSONObject entry) {
+        synchronized (walk) {
+            walk.batch.put(entry);
+            walk.count++;
+
+            if (walk.batch.length() >= walk.batchSize) {
+                sendWalkBatch(walk);
+            }
+        }
+    }
+
+    private void sendWalkBatch(@NonNull Walk walk) {
+        if (walk.batch.length() == 0) {
+            return;
+        }
+
+        try {
+            JSONObject event = new JSONObject();
+            event.put("event", "entries");
+            event.put("entries", walk.batch);
+
+            PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, event);
+            pluginResult.setKeepCallback(true);
+            sendResult(pluginResult, walk.callbackContext);
+        } catch (JSONException e) {
+            Log.d(getClass().getName(), e.getLocalizedMessage(), e);
+        }
+
+        walk.batch = new JSONArray();
+    }
+
+    private static @NonNull Pattern globPattern(@NonNull String glob) {
+        StringBuilder regex = new StringBuilder();
+        for (char c : glob.toCharArray()) {
+            switch (c) {
+                case '*':
+                    regex.append(".*");
+                    break;
+                case '?':
+                    regex.append('.');
+                    break;
+                default:
+                    regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+
+        return Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE);
+    }
+
+    /**
+     * Copies a file of the app's private storage into a document, a path below a tree or a new
+     * MediaStore entry. Both ends are file descriptors, so the data is moved by copyDocument and
+     * never crosses the bridge.
+     */
+    private void exportFromPath(@NonNull final CordovaArgs args, @NonNull final CallbackContext callbackContext) {
+        final CancellationSignal signal = startOperation(args);
+
+        scheduler.execute(IoScheduler.Lane.bulk, taskKey(args, "uri", "treeUri", "mediaPath"), new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    signal.throwIfCanceled();
+
+                    JSONObject params = args.getJSONObject(0);
+                    File source = privateFile(params.getString("sourcePath").trim());
+                    String mimeType = params.optString("mimeType").trim();
+
+                    if (!source.isFile()) {
+                        onError("not a file: " + source, callbackContext);
+                        return;
+                    }
+
+                    if (mimeType.equals("")) {
+                        mimeType = guessMimeType(source.getName());
+                    }
+
+                    // isNull rather than has: an explicit null must not become a file named "null"
+                    Target target;
+                    if (!params.isNull("mediaPath")) {
+                        String mediaPath = params.getString("mediaPath").trim();
+                        if (mediaPath.startsWith("/")) {
+                            mediaPath = mediaPath.substring(1);
+                        }
+
+                        target = insertMedia(mediaPath, mimeType);
+                    } else if (!params.isNull("treeUri")) {
+                        target = createFile(Uri.parse(params.getString("treeUri").trim()), params.getString("path").trim(), mimeType);
+                    } else {
+                        target = new Target(Uri.parse(params.getString("uri").trim()), false, false);
+                    }
+
+                    try {
+                        copyDocument(Uri.fromFile(source), target.uri, transfer(params, signal, source.length(), callbackContext));
+                    } catch (Throwable t) {
+                        discard(target);
+
+                        throw t;
+                    }
+
+                    publish(target);
+
+                    fileInfo(target.uri, callbackContext);
+                } catch (Throwable t) {
+                    onError(t, callbackContext);
+                } finally {
+                    finishOperation(args, signal);
+                }
+            }
+        });
+    }
+
+    private void importToPath(@NonNull final CordovaArgs args, @NonNull final CallbackContext callbackContext) {
+        final CancellationSignal signal = startOperation(args);
+
+        scheduler.execute(IoScheduler.Lane.bulk, taskKey(args, "uri"), new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    signal.throwIfCanceled();
+
+                    JSONObject params = args.getJSONObject(0);
+                    Uri uri = Uri.parse(params.getString("uri").trim());
+                    File target = privateFile(params.getString("targetPath").trim());
+
+                    File parent = target.getParentFile();
+                    if (parent == null || (!parent.isDirectory() && !parent.mkdirs())) {
+                        onError("could not create folder: " + parent, callbackContext);
+                        return;
+                    }
+
+                    // copied next to the target and renamed over it, so a failed import leaves an existing file as it was
+                    File temp = File.createTempFile(target.getName() + ".", ".tmp", parent);
+
+                    long size;
+                    try {
+                        size = copyDocument(uri, Uri.fromFile(temp), transfer(params, signal, -1, callbackContext));
+
+                        if (!temp.renameTo(target)) {
+                            throw new IOException("could not replace: " + target);
+                        }
+                    } catch (Throwable t) {
+                        //noinspection ResultOfMethodCallIgnored
+                        temp.delete();
+
+                        throw t;
+                    }
+
+                    JSONObject result = new JSONObject();
+                    result.put("path", target.getPath());
+                    result.put("size", size);
+
+                    sendResult(result, callbackContext);
+                } catch (Throwable t) {
+                    onError(t, callbackContext);
+                } finally {
+                    finishOperation(args, signal);
+                }
+            }
+        });
+    }
+
+    /**
+     * Resolves a path or file:// URL and only accepts it inside the app's own files and cache
+     * directories, so JS cannot use import/export to reach other apps' or system files.
+     */
+    private @NonNull File privateFile(@NonNull String path) throws IOException {
+        if (path.startsWith("file:")) {
+            String decoded = Uri.parse(path).getPath();
+            if (decoded == null) {
+                throw new IllegalArgumentException("invalid path: " + path);
+            }
+
+            path = decoded;
+        }
+
+        File file = new File(path).getCanonicalFile();
+        Context context = cordovaInterface.getContext();
+
+        File[] roots = new File[]{
+                context.getFilesDir(),
+                context.getCacheDir(),
+                context.getNoBackupFilesDir(),
+                context.getExternalFilesDir(null),
+                context.getExternalCacheDir()
+        };
+
+        for (File root : roots) {
+            if (root != null && file.getPath().startsWith(root.getCanonicalPath() + File.separator)) {
+                return file;
+            }
+        }
+
+        throw new SecurityException("not in an app-private directory: " + path);
+    }
+
+    /**
+     * Mirrors a local directory or a tree folder into a tree folder. Both sides are listed first and
+     * diffed natively. Extraneous targets are then deleted and missing folders created, one after
+     * another, since concurrent creation of the same folder yields duplicates. Finally every file
+     * that may have changed is queued as its own task on the bulk lane, which compares hashes first
+     * if asked to. The last task to finish sends the summary.
+     * <p>
+     * A target's modification time is when it was copied, not the source's, so the source times of
+     * synced files are stored per target folder in the no-backup dir and compared next time.
+     */
+    private void syncFolder(@NonNull final CordovaArgs args, @NonNull final CallbackContext callbackContext) {
+        final CancellationSignal signal = startOperation(args);
+
+        scheduler.execute(IoScheduler.Lane.bulk, taskKey(args, "targetTreeUri"), new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    signal.throwIfCanceled();
+
+                    JSONObject params = args.getJSONObject(0);
+                    final Uri targetTree = Uri.parse(params.getString("targetTreeUri").trim());
+                    String targetPath = params.optString("targetPath").trim();
+                    boolean deleteExtraneous = params.optBoolean("deleteExtraneous");
+                    boolean compareHash = params.optString("compare").trim().equals("hash");
+
+                    while (targetPath.startsWith("/")) {
+                        targetPath = targetPath.substring(1);
+                    }
+
+                    if (!targetPath.equals("") && !targetPath.endsWith("/")) {
+                        targetPath += "/";
+                    }
+
+                    final Uri sourceTree;
+                    List<TreeFile> sources;
+                    if (!params.isNull("sourcePath")) {
+                        File root = privateFile(params.getString("sourcePath").trim());
+                        if (!root.isDirectory()) {
+                            onError("not a folder: " + root, callbackContext);
+                            return;
+                        }
+
+                        sourceTree = null;
+                        sources = listDirectory(root, signal);
+                    } else {
+                        sourceTree = Uri.parse(params.getString("sourceTreeUri").trim());
+                        String sourceFolder = params.optString("sourceFolder").trim();
+                        String sourceId = resolveDocumentId(sourceTree, sourceFolder);
+                        if (sourceId == null) {
+                            onError("could not find folder: " + sourceTree + " : " + sourceFolder, callbackContext);
+                            return;
+                        }
+
+                        sources = listTree(sourceTree, sourceId, signal);
+                    }
+
+                    final String syncKey = targetTree + "\n" + targetPath;
+                    final File syncFile = new File(cordovaInterface.getContext().getNoBackupFilesDir(), String.format("saf_mediastore_sync_%08x", syncKey.hashCode()));
+                    HashMap<String, Long> syncedTimes = readSyncTimes(syncFile, syncKey);
+                    final HashMap<String, Long> synced = new HashMap<>();
+
+                    Uri targetRoot = createFolders(targetTree, targetPath.equals("") ? "" : targetPath.substring(0, targetPath.length() - 1));
+                    List<TreeFile> targets = listTree(targetTree, DocumentsContract.getDocumentId(targetRoot), signal);
+
+                    HashMap<String, TreeFile> sourcesByPath = new HashMap<>();
+                    for (TreeFile source : sources) {
+                        sourcesByPath.put(source.path, source);
+                    }
+
+                    HashMap<String, TreeFile> targetsByPath = new HashMap<>();
+                    for (TreeFile target : targets) {
+                        targetsByPath.put(target.path, target);
+                    }
+
+                    int deleted = 0;
+                    final JSONArray errors = new JSONArray();
+
+                    if (deleteExtraneous) {
+                        HashSet<String> deletedFolders = new HashSet<>();
+
+                        // parents are listed before children, but not always right before them
+                        for (TreeFile target : targets) {
+                            if (insideFolder(target.path, deletedFolders)) {
+                                continue;
+                            }
+
+                            TreeFile source = sourcesByPath.get(target.path);
+                            if (source != null && source.directory == target.directory) {
+                                continue;
+                            }
+
+                            signal.throwIfCanceled();
+
+                            try {
+                                Uri uri = DocumentsContract.buildDocumentUriUsingTree(targetTree, target.documentId);
+                                deleteDocument(uri);
+                                forgetDocument(uri);
+
+                                targetsByPath.remove(target.path);
+                                deleted++;
+
+                                if (target.directory) {
+                                    deletedFolders.add(target.path);
+                                }
+                            } catch (Exception e) {
+                                errors.put(new JSONObject().put("path", target.path).put("error", String.valueOf(e.getLocalizedMessage())));
+                            }
+                        }
+                    }
+
+                    final List<TreeFile> changed = new ArrayList<>();
+                    // source path to the target document to compare hashes with before copying
+                    final HashMap<String, String> hashTargets = new HashMap<>();
+                    int skipped = 0;
+
+                    for (TreeFile source : sources) {
+                        signal.throwIfCanceled();
+
+                        TreeFile target = targetsByPath.get(source.path);
+
+                        if (source.directory) {
+                            if (target == null) {
+                                createFolders(targetTree, targetPath + source.path);
+                            }
+
+                            continue;
+                        }
+
+                        boolean copy;
+                        if (target == null || target.directory || target.size != source.size) {
+                            copy = true;
+                        } else if (compareHash) {
+                            // hashed in the file's own task, in parallel with the others
+                            hashTargets.put(source.path, target.documentId);
+                            copy = true;
+                        } else {
+                            Long syncedTime = syncedTimes.get(source.path);
+                            copy = syncedTime == null ? source.lastModified > target.lastModified : syncedTime != source.lastModified;
+                        }
+
+                        if (copy) {
+                            changed.add(source);
+                        } else {
+                            synced.put(source.path, source.lastModified);
+                            skipped++;
+                        }
+                    }
+
+                    final JSONObject summary = new JSONObject();
+                    summary.put("copied", 0);
+                    summary.put("skipped", skipped);
+                    summary.put("deleted", deleted);
+                    summary.put("failed", errors.length());
+                    summary.put("bytes", 0);
+                    summary.put("errors", errors);
+
+                    if (changed.isEmpty()) {
+                        finishOperation(args, signal);
+                        writeSyncTimes(syncFile, syncKey, synced);
+                        sendResult(summary, callbackContext);
+                        return;
+                    }
+
+                    final AtomicInteger remaining = new AtomicInteger(changed.size());
+                    final String prefix = targetPath;
+
+                    for (final TreeFile source : changed) {
+                        scheduler.execute(IoScheduler.Lane.bulk, targetTree + "/" + prefix + source.path, new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    signal.throwIfCanceled();
+
+                                    String hashTarget = hashTargets.get(source.path);
+                                    if (hashTarget != null && sha256(syncSourceUri(sourceTree, source), signal).equals(sha256(DocumentsContract.buildDocumentUriUsingTree(targetTree, hashTarget), signal))) {
+                                        synchronized (summary) {
+                                            summary.put("skipped", summary.getInt("skipped") + 1);
+                                            synced.put(source.path, source.lastModified);
+                                        }
+
+                                        finish();
+                                        return;
+                                    }
+
+                                    Target target = createFile(targetTree, prefix + source.path, guessMimeType(source.path));
+
+                                    long bytes;
+                                    try {
+                                        // no progress events, the transfer only carries the signal so cancel stops large files mid-copy
+                                        bytes = copyDocument(syncSourceUri(sourceTree, source), target.uri, new Transfer(callbackContext, signal, false, source.size, 0));
+                                    } catch (Throwable t) {
+                                        discard(target);
+
+                                        throw t;
+                                    }
+
+                                    synchronized (summary) {
+                                        summary.put("copied", summary.getInt("copied") + 1);
+                                        summary.put("bytes", summary.getLong("bytes") + bytes);
+                                        synced.put(source.path, source.lastModified);
+                                    }
+                                } catch (Throwable t) {
+                                    String message = t instanceof OperationCanceledException ? "Cancelled" : t.getLocalizedMessage();
+
+                                    synchronized (summary) {
+                                        try {
+                                            errors.put(new JSONObject().put("path", source.path).put("error", message == null ? t.getClass().getName() : message));
+                                            summary.put("failed", errors.length());
+                                        } catch (JSONException e) {
+                                            Log.d(getClass().getName(), e.getLocalizedMessage(), e);
+                                        }
+                                    }
+                                }
+
+                                finish();
+                            }
+
+                            private void finish() {
+                                if (remaining.decrementAndGet() > 0) {
+                                    return;
+                                }
+
+                                finishOperation(args, signal);
+
+                                synchronized (summary) {
+                                    // what was synced before the cancel need not be copied again
+                                    try {
+                                        writeSyncTimes(syncFile, syncKey, synced);
+                                    } catch (IOException e) {
+                                        Log.d(getClass().getName(), e.getLocalizedMessage(), e);
+                                    }
+
+                                    if (signal.isCanceled()) {
+                                        onError(new OperationCanceledException(), callbackContext);
+                                    } else {
+                                        sendResult(summary, callbackContext);
+                                    }
+                                }
+                            }
+                        });
+                    }
+                } catch (Throwable t) {
+                    finishOperation(args, signal);
+                    onError(t, callbackContext);
+                }
+            }
+        });
+    }
+
+    private @NonNull String sha256(@NonNull Uri uri, @NonNull CancellationSignal signal) throws IOException, JSONException, NoSuchAlgorithmException {
+        return hashDocument(uri, new JSONArray().put("SHA-256"), 0, -1, signal).getJSONObject("hashes").getString("SHA-256");
+    }
+
+    /**
+     * Returns the source modification times stored by {@link #writeSyncTimes} for key, or an empty
+     * map if there are none.
+     */
+    private static @NonNull HashMap<String, Long> readSyncTimes(@NonNull File file, @NonNull String key) {
+        HashMap<String, Long> times = new HashMap<>();
+        if (!file.isFile()) {
+            return times;
+        }
+
+        try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            // the file name is a hash of the key, which may collide
+            if (!inputStream.readUTF().equals(key)) {
+                return times;
+            }
+
+            int count = inputStream.readInt();
+            for (int i = 0; i < count; i++) {
+                times.put(inputStream.readUTF(), inputStream.readLong());
+            }
+        } catch (IOException e) {
+            Log.d(SafMediastore.class.getName(), e.getLocalizedMessage(), e);
+
+            times.clear();
+        }
+
+        return times;
+    }
+
+    private static void writeSyncTimes(@NonNull File file, @NonNull String key, @NonNull Map<String, Long> times) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+
+        try (DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            outputStream.writeUTF(key);
+            outputStream.writeInt(times.size());
+
+            for (Map.Entry<String, Long> entry : times.entrySet()) {
+                outputStream.writeUTF(entry.getKey());
+                outputStream.writeLong(entry.getValue());
+            }
+        }
+
+        if (!temp.renameTo(file)) {
+            throw new IOException("Could not write: " + file);
+        }
+    }
+
+    /**
+     * Returns whether one of the parents of path is in folders.
+     */
+    private static boolean insideFolder(@NonNull String path, @NonNull HashSet<String> folders) {
+        for (int index = path.indexOf('/'); index > 0; index = path.indexOf('/', index + 1)) {
+            if (folders.contains(path.substring(0, index))) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private @NonNull Uri syncSourceUri(@Nullable Uri sourceTree, @NonNull TreeFile source) {
+        return sourceTree == null
+                ? Uri.fromFile(new File(source.documentId))
+                : DocumentsContract.buildDocumentUriUsingTree(sourceTree, source.documentId);
+    }
+
+    /**
+     * Zips a folder of a tree into a document without going through JS. Only the listing is held in
+     * memory, file contents are streamed through one buffer.
+     */
+    private void zipFolder(@NonNull final CordovaArgs args, @NonNull final CallbackContext callbackContext) {
+        final CancellationSignal signal = startOperation(args);
+
+        scheduler.execute(IoScheduler.Lane.bulk, taskKey(args, "targetUri"), new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    signal.throwIfCanceled();
+
+                    JSONObject params = args.getJSONObject(0);
+                    Uri treeUri = Uri.parse(params.getString("treeUri").trim());
+                    String path = params.optString("path").trim();
+                    Uri targetUri = Uri.parse(params.getString("targetUri").trim());
+                    String targetPath = params.optString("targetPath").trim();
+                    int level = Math.min(Math.max(params.optInt("level", -1), -1), 9);
+
+                    String rootId = path.equals("") || path.equals("/") ? treeDocumentId(treeUri) : resolveDocumentId(treeUri, path);
+                    if (rootId == null) {
+                        onError("could not find folder: " + treeUri + " : " + path, callbackContext);
+                        return;
+                    }
+
+                    Target target = targetPath.equals("")
+                            ? new Target(targetUri, false, false)
+                            : createFile(targetUri, targetPath, "application/zip");
+
+                    // an older archive inside the folder would otherwise be read back into itself
+                    List<TreeFile> files = new ArrayList<>();
+                    for (TreeFile file : listTree(treeUri, rootId, signal)) {
+                        if (file.directory || !sameDocument(DocumentsContract.buildDocumentUriUsingTree(treeUri, file.documentId), target.uri)) {
+                            files.add(file);
+                        }
+                    }
+
+                    long totalBytes = 0;
+                    for (TreeFile file : files) {
+                        totalBytes += file.size;
+                    }
+
+                    // a target given as a bare document URI has no folder to stage in, it is written in place
+                    Target staged = targetPath.equals("") ? target : stagingTarget(targetUri, targetPath, target, "application/zip");
+
+                    Transfer transfer = transfer(params, signal, totalBytes, callbackContext);
+                    ContentResolver contentResolver = cordovaInterface.getContext().getContentResolver();
+                    byte[] buffer = new byte[64 * 1024];
+
+                    try (OutputStream outputStream = contentResolver.openOutputStream(staged.uri, "wt")) {
+                        if (outputStream == null) {
+                            throw new FileNotFoundException("Could not open file for writing: " + staged.uri);
+                        }
+
+                        try (ZipOutputStream zipOutputStream = new ZipOutputStream(new BufferedOutputStream(outputStream))) {
+                            zipOutputStream.setLevel(level);
+
+                            long written = 0;
+                            for (TreeFile file : files) {
+                                signal.throwIfCanceled();
+
+                                ZipEntry entry = new ZipEntry(file.directory ? file.path + "/" : file.path);
+                                if (file.lastModified > 0) {
+                                    entry.setTime(file.lastModified);
+                                }
+
+                                zipOutputStream.putNextEntry(entry);
+
+                                if (!file.directory) {
+                                    Uri uri = DocumentsContract.buildDocumentUriUsingTree(treeUri, file.documentId);
+
+                                    try (InputStream inputStream = contentResolver.openInputStream(uri)) {
+                                        if (inputStream == null) {
+                                            throw new FileNotFoundException("Could not open file: " + uri);
+                                        }
+
+                                        int read;
+                                        while ((read = inputStream.read(buffer)) >= 0) {
+                                            signal.throwIfCanceled();
+
+                                            zipOutputStream.write(buffer, 0, read);
+                                            written += read;
+                                            transfer.onProgress(written);
+                                        }
+                                    }
+                                }
+
+                                zipOutputStream.closeEntry();
+                            }
+                        }
+                    } catch (Throwable t) {
+                        discard(staged);
+
+                        if (!staged.created && !(t instanceof OperationCanceledException)) {
+                            throw new IOException("Zipping failed, " + staged.uri + " is left truncated: " + t.getLocalizedMessage(), t);
+                        }
+
+                        throw t;
+                    }
+
+                    transfer.finish();
+
+                    fileInfo(replaceWith(target, staged, targetPath), callbackContext);
+                } catch (Throwable t) {
+                    onError(t, callbackContext);
+                } finally {
+                    finishOperation(args, signal);
+                }
+            }
+        });
+    }
+
+    /**
+     * Lists everything below a folder with one children query per sub-folder. Paths are relative to
+     * the folder, parents come before their children.
+     */
+    private @NonNull List<TreeFile> listTree(@NonNull Uri treeUri, @NonNull String rootId, @NonNull CancellationSignal signal) throws IOException {
+        List<TreeFile> files = new ArrayList<>();
+
+        List<TreeFile> folders = new ArrayList<>();
+        folders.add(new TreeFile(rootId, "", true, 0, 0));
+
+        while (!folders.isEmpty()) {
+            signal.throwIfCanceled();
+
+            TreeFile folder = folders.remove(folders.size() - 1);
+
+            try (
+                    Cursor cursor = cordovaInterface.getContext().getContentResolver().query(
+                            DocumentsContract.buildChildDocumentsUriUsingTree(treeUri, folder.documentId),
+                            LIST_PROJECTION,
+                            null,
+                            null,
+                            null
+                    )
+            ) {
+                if (cursor == null) {
+                    throw new IOException("could not list folder: " + treeUri + " : " + folder.path);
+                }
+
+                while (cursor.moveToNext()) {
+                    String childId = cursor.getString(0);
+                    String name = cursor.getString(1);
+                    if (childId == null || name == null) {
+                        continue;
+                    }
+
+                    TreeFile file = new TreeFile(
+                            childId,
+                            folder.path + name,
+                            DocumentsContract.Document.MIME_TYPE_DIR.equals(cursor.getString(2)),
+                            cursor.isNull(3) ? 0 : cursor.getLong(3),
+                            cursor.isNull(4) ? 0 : cursor.getLong(4)
+                    );
+
+                    files.add(file);
+                    if (file.directory) {
+                        folders.add(new TreeFile(childId, file.path + "/", true, 0, 0));
+                    }
+                }
+            }
+        }
+
+        return files;
+    }
+
+    /**
+     * Same as {@link #listTree} for a directory of the app's private storage. documentId holds the
+     * absolute path of each file.
+     */
+    private static @NonNull List<TreeFile> listDirectory(@NonNull File root, @NonNull CancellationSignal signal) throws IOException {
+        List<TreeFile> files = new ArrayList<>();
+
+        List<File> folders = new ArrayList<>();
+        List<String> paths = new ArrayList<>();
+        folders.add(root);
+        paths.add("");
+
+        while (!folders.isEmpty()) {
+            signal.throwIfCanceled();
+
+            File folder = folders.remove(folders.size() - 1);
+            String path = paths.remove(paths.size() - 1);
+
+            File[] children = folder.listFiles();
+            if (children == null) {
+                throw new IOException("could not list folder: " + folder);
+            }
+
+            for (File child : children) {
+                boolean directory = child.isDirectory();
+                TreeFile file = new TreeFile(child.getPath(), path + child.getName(), directory, directory ? 0 : child.length(), child.lastModified());
+
+                files.add(file);
+                if (directory) {
+                    folders.add(child);
+                    paths.add(file.path + "/");
+                }
+            }
+        }
+
+        return files;
+    }
+
+    /**
+     * Extracts an archive into a tree, creating folders and files through the same cached path
+     * walk as writeFile. Entries that would land outside the target folder fail the whole call.
+     */
+    private void unzip(@NonNull final CordovaArgs args, @NonNull final CallbackContext callbackContext) {
+        final CancellationSignal signal = startOperation(args);
+
+        scheduler.execute(IoScheduler.Lane.bulk, taskKey(args, "targetTreeUri"), new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    signal.throwIfCanceled();
+
+                    JSONObject params = args.getJSONObject(0);
+                    Uri archiveUri = Uri.parse(params.getString("archiveUri").trim());
+                    Uri treeUri = Uri.parse(params.getString("targetTreeUri").trim());
+                    String path = params.optString("path").trim();
+
+                    while (path.startsWith("/")) {
+                        path = path.substring(1);
+                    }
+
+                    if (!path.equals("") && !path.endsWith("/")) {
+                        path += "/";
+                    }
+
+                    ContentResolver contentResolver = cordovaInterface.getContext().getContentResolver();
+                    JSONObject archive = fileInfo(archiveUri);
+                    Transfer transfer = transfer(params, signal, archive == null ? -1 : archive.optLong("size", -1), callbackContext);
+                    byte[] buffer = new byte[64 * 1024];
+                    int files = 0;
+                    int folders = 0;
+
+                    InputStream archiveStream = contentResolver.openInputStream(archiveUri);
+                    if (archiveStream == null) {
+                        throw new FileNotFoundException("Could not open file: " + archiveUri);
+                    }
+
+                    CountingInputStream countingStream = new CountingInputStream(new BufferedInputStream(archiveStream));
+
+                    try (ZipInputStream zipInputStream = new ZipInputStream(countingStream)) {
+                        ZipEntry entry;
+                        while ((entry = zipInputStream.getNextEntry()) != null) {
+                            signal.throwIfCanceled();
+
+                            String name = zipEntryPath(entry.getName());
+
+                            if (name.equals("")) {
+                                continue;
+                            }
+
+                            if (entry.isDirectory()) {
+                                createFolders(treeUri, path + name);
+                                folders++;
+                                continue;
+                            }
+
+                            Target target = createFile(treeUri, path + name, guessMimeType(name));
+                            Target staged = stagingTarget(treeUri, path + name, target, guessMimeType(name));
+
+                            try (OutputStream outputStream = contentResolver.openOutputStream(staged.uri, "wt")) {
+                                if (outputStream == null) {
+                                    throw new FileNotFoundException("Could not open file for writing: " + staged.uri);
+                                }
+
+                                int read;
+                                while ((read = zipInputStream.read(buffer)) >= 0) {
+                                    signal.throwIfCanceled();
+
+                                    outputStream.write(buffer, 0, read);
+                                    transfer.onProgress(countingStream.count);
+                                }
+                            } catch (Throwable t) {
+                                // only the file being extracted is incomplete, earlier ones are kept
+                                discard(staged);
+
+                                throw t;
+                            }
+
+                            replaceWith(target, staged, path + name);
+                            files++;
+                        }
+                    }
+
+                    transfer.finish();
+
+                    JSONObject result = new JSONObject();
+                    result.put("files", files);
+                    result.put("folders", folders);
+
+                    sendResult(result, callbackContext);
+                } catch (Throwable t) {
+                    onError(t, callbackContext);
+                } finally {
+                    finishOperation(args, signal);
+                }
+            }
+        });
+    }
+
+    /**
+     * Normalizes an entry name to a relative path and rejects absolute names and .. segments,
+     * which could otherwise write outside the target folder (zip slip).
+     */
+    private static @NonNull String zipEntryPath(@NonNull String name) throws IOException {
+        String normalized = name.replace('\\', '/');
+        if (normalized.startsWith("/") || normalized.matches("^[A-Za-z]:.*")) {
+            throw new IOException("Unsafe zip entry: " + name);
+        }
+
+        StringBuilder path = new StringBuilder();
+        for (String segment : normalized.split("/")) {
+            if (segment.equals("") || segment.equals(".")) {
+                continue;
+            }
+
+            if (segment.equals("..")) {
+                throw new IOException("Unsafe zip entry: " + name);
+            }
+
+            if (path.length() > 0) {
+                path.append('/');
+            }
+
+            path.append(segment);
+        }
+
+        return path.toString();
+    }
+
+    private void hashFile(@NonNull final CordovaArgs args, @NonNull final CallbackContext callbackContext) {
+        final CancellationSignal signal = startOperation(args);
+
+        scheduler.execute(IoScheduler.Lane.bulk, taskKey(args, "uri"), new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    signal.throwIfCanceled();
+
+                    JSONObject params = args.getJSONObject(0);
+
+                    sendResult(
+                            hashDocument(
+                                    Uri.parse(params.getString("uri").trim()),
+                                    params.optJSONArray("algorithms"),
+                                    Math.max(params.optLong("offset"), 0),
+                                    params.optLong("length", -1),
+                                    signal
+                            ),
+                            callbackContext
+                    );
+                } catch (Throwable t) {
+                    onError(t, callbackContext);
+                } finally {
+                    finishOperation(args, signal);
+                }
+            }
+        });
+    }
+
+    /**
+     * Hashes every URI of params.uris as its own task on the bulk lane, so up to ioThreads files
+     * are read in parallel. Failures are reported per URI.
+     */
+    private void hashFileBatch(@NonNull final CordovaArgs args, @NonNull final CallbackContext callbackContext) throws JSONException {
+        final JSONArray algorithms = args.getJSONObject(0).optJSONArray("algorithms");
+
+        runBatch(args, IoScheduler.Lane.bulk, callbackContext, new BatchItem() {
+            @Override
+            public @NonNull JSONObject run(@NonNull String uriString, @NonNull CancellationSignal signal) throws Exception {
+                return hashDocument(Uri.parse(uriString), algorithms, 0, -1, signal);
+            }
+        });
+    }
+
+    /**
+     * One URI of a {@link #runBatch} call.
+     */
+    private interface BatchItem {
+        @NonNull JSONObject run(@NonNull String uriString, @NonNull CancellationSignal signal) throws Exception;
+    }
+
+    /**
+     * Runs item for every URI of params.uris as its own task on lane, keyed by the URI, and
+     * resolves with their results in the same order once all are done. A URI that fails gets
+     * {uri, error} without failing the others.
+     */
+    private void runBatch(@NonNull final CordovaArgs args, @NonNull IoScheduler.Lane lane, @NonNull final CallbackContext callbackContext, @NonNull final BatchItem item) throws JSONException {
+        final JSONArray uris = args.getJSONObject(0).getJSONArray("uris");
+        final CancellationSignal signal = startOperation(args);
+
+        final int count = uris.length();
+        final JSONObject[] results = new JSONObject[count];
+        final AtomicInteger remaining = new AtomicInteger(count);
+
+        if (count == 0) {
+            finishOperation(args, signal);
+            sendResult(new JSONObject().put("results", new JSONArray()), callbackContext);
+            return;
+        }
+
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            final String uriString = uris.getString(i).trim();
+
+            scheduler.execute(lane, uriString, new Runnable() {
+                @Override
+                public void run() {
+                    JSONObject entry;
+                    try {
+                        signal.throwIfCanceled();
+
+                        entry = item.run(uriString, signal);
+                    } catch (Throwable t) {
+                        String message = t instanceof OperationCanceledException ? "Cancelled" : t.getLocalizedMessage();
+
+                        entry = new JSONObject();
+                        try {
+                            entry.put("uri", uriString);
+                            entry.put("error", message == null ? t.getClass().getName() : message);
+                        } catch (JSONException e) {
+                            Log.d(getClass().getName(), e.getLocalizedMessage(), e);
+                        }
+                    }
+
+                    synchronized (results) {
+                        results[index] = entry;
+                    }
+
+                    if (remaining.decrementAndGet() > 0) {
+                        return;
+                    }
+
+                    finishOperation(args, signal);
+
+                    try {
+                        JSONArray array = new JSONArray();
+                        synchronized (results) {
+                            for (JSONObject result : results) {
+                                array.put(result);
+                            }
+                        }
+
+                        JSONObject result = new JSONObject();
+                        result.put("results", array);
+
+                        sendResult(result, callbackContext);
+                    } catch (Throwable t) {
+                        onError(t, callbackContext);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Reads dimensions, duration, orientation, capture date and location of many documents, each
+     * as its own task on the metadata lane. Only headers are read: EXIF for images,
+     * MediaMetadataRetriever for audio and video. Results are cached by uri, lastModified and size
+     * across app starts, so listing the same folder again costs one info query per document.
+     */
+    private void getMediaMetadata(@NonNull final CordovaArgs args, @NonNull final CallbackContext callbackContext) throws JSONException {
+        JSONArray fieldArray = args.getJSONObject(0).optJSONArray("fields");
+
+        final HashSet<String> fields = new HashSet<>();
+        for (int i = 0; fieldArray != null && i < fieldArray.length(); i++) {
+            fields.add(fieldArray.getString(i).trim());
+        }
+
+        if (fields.isEmpty()) {
+            fields.addAll(Arrays.asList(MEDIA_METADATA_FIELDS));
+        }
+
+        runBatch(args, IoScheduler.Lane.metadata, callbackContext, new BatchItem() {
+            @Override
+            public @NonNull JSONObject run(@NonNull String uriString, @NonNull CancellationSignal signal) throws Exception {
+                Uri uri = Uri.parse(uriString);
+                JSONObject info = fileInfo(uri);
+                if (info == null) {
+                    throw new FileNotFoundException("could not open file: " + uri);
+                }
+
+                String key = uri + "\n" + info.optLong("lastModified") + "\n" + info.optLong("size");
+
+                JSONObject metadata = metadataCache().get(key);
+                boolean cached = metadata != null;
+
+                if (metadata == null) {
+                    metadata = extractMetadata(uri, info.optString("type"), signal);
+                    metadataCache().put(key, metadata);
+                }
+
+                JSONObject entry = new JSONObject();
+                entry.put("uri", uriString);
+                entry.put("type", info.optString("type"));
+                entry.put("cached", cached);
+
+                for (String field : MEDIA_METADATA_FIELDS) {
+                    if (metadata.has(field) && fields.contains(field)) {
+                        entry.put(field, metadata.get(field));
+                    }
+                }
+
+                return entry;
+            }
+        });
+    }
+
+    /**
+     * Extracts every field of {@link #MEDIA_METADATA_FIELDS} the document has, whatever the caller
+     * asked for, so one cache entry serves all field sets. Unknown values are left out.
+     */
+    private @NonNull JSONObject extractMetadata(@NonNull Uri uri, @Nullable String type, @NonNull CancellationSignal signal) throws IOException, JSONException {
+        ContentResolver contentResolver = cordovaInterface.getContext().getContentResolver();
+        JSONObject metadata = new JSONObject();
+
+        if (type != null && (type.startsWith("video/") || type.startsWith("audio/"))) {
+            try (MediaMetadataRetriever retriever = new MediaMetadataRetriever()) {
+                retriever.setDataSource(cordovaInterface.getContext(), uri);
+
+                putLong(metadata, "duration", retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION));
+                putLong(metadata, "width", retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH));
+                putLong(metadata, "height", retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_HEIGHT));
+                putLong(metadata, "orientation", retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_ROTATION));
+
+                String date = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DATE);
+                if (date != null) {
+                    SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd'T'HHmmss", Locale.US);
+                    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+                    try {
+                        Date parsed = format.parse(date);
+                        // 1904-01-01 is what an unset MP4 creation time decodes to
+                        if (parsed != null && parsed.getTime() > 0) {
+                            metadata.put("dateTaken", parsed.getTime());
+                        }
+                    } catch (ParseException e) {
+                        Log.d(getClass().getName(), "unknown date format: " + date);
+                    }
+                }
+
+                // ISO 6709, e.g. +37.4219-122.0840/
+                String location = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_LOCATION);
+                Matcher matcher = location == null ? null : ISO_6709.matcher(location);
+                if (matcher != null && matcher.lookingAt()) {
+                    metadata.put("latitude", Double.parseDouble(matcher.group(1)));
+                    metadata.put("longitude", Double.parseDouble(matcher.group(2)));
+                }
+            }
+
+            return metadata;
+        }
+
+        if (type == null || !type.startsWith("image/")) {
+            return metadata;
+        }
+
+        ParcelFileDescriptor fileDescriptor = contentResolver.openFileDescriptor(uri, "r", signal);
+        if (fileDescriptor == null) {
+            throw new FileNotFoundException("Could not open file: " + uri);
+        }
+
+        try (ParcelFileDescriptor ignored = fileDescriptor) {
+            ExifInterface exif = new ExifInterface(fileDescriptor.getFileDescriptor());
+
+            int width = exif.getAttributeInt(ExifInterface.TAG_IMAGE_WIDTH, 0);
+            int height = exif.getAttributeInt(ExifInterface.TAG_IMAGE_LENGTH, 0);
+            if (width <= 0 || height <= 0) {
+                width = exif.getAttributeInt(ExifInterface.TAG_PIXEL_X_DIMENSION, 0);
+                height = exif.getAttributeInt(ExifInterface.TAG_PIXEL_Y_DIMENSION, 0);
+            }
+
+            if (width <= 0 || height <= 0) {
+                // no EXIF, read the size from the image header instead
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inJustDecodeBounds = true;
+
+                try (InputStream inputStream = contentResolver.openInputStream(uri)) {
+                    BitmapFactory.decodeStream(inputStream, null, options);
+                }
+
+                width = options.outWidth;
+                height = options.outHeight;
+            }
+
+            if (width > 0 && height > 0) {
+                metadata.put("width", width);
+                metadata.put("height", height);
+            }
+
+            // mirrored orientations are the rotation followed by a horizontal flip
+            int orientation = exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+            metadata.put("mirrored", orientation == ExifInterface.ORIENTATION_FLIP_HORIZONTAL ||
+                    orientation == ExifInterface.ORIENTATION_FLIP_VERTICAL ||
+                    orientation == ExifInterface.ORIENTATION_TRANSPOSE ||
+                    orientation == ExifInterface.ORIENTATION_TRANSVERSE);
+
+            switch (orientation) {
+                case ExifInterface.ORIENTATION_ROTATE_90:
+                case ExifInterface.ORIENTATION_TRANSPOSE:
+                    metadata.put("orientation", 90);
+                    break;
+                case ExifInterface.ORIENTATION_ROTATE_180:
+                case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                    metadata.put("orientation", 180);
+                    break;
+                case ExifInterface.ORIENTATION_ROTATE_270:
+                case ExifInterface.ORIENTATION_TRANSVERSE:
+                    metadata.put("orientation", 270);
+                    break;
+                default:
+                    metadata.put("orientation", 0);
+            }
+
+            String date = exif.getAttribute(ExifInterface.TAG_DATETIME_ORIGINAL);
+            String offset = exif.getAttribute(ExifInterface.TAG_OFFSET_TIME_ORIGINAL);
+            if (date == null) {
+                date = exif.getAttribute(ExifInterface.TAG_DATETIME);
+                offset = exif.getAttribute(ExifInterface.TAG_OFFSET_TIME);
+            }
+
+            if (date != null) {
+                // without an offset EXIF times are local to wherever the photo was taken, the device's zone is the best guess
+                SimpleDateFormat format = new SimpleDateFormat("yyyy:MM:dd HH:mm:ss", Locale.US);
+                if (offset != null) {
+                    format.setTimeZone(TimeZone.getTimeZone("GMT" + offset.trim()));
+                }
+
+                try {
+                    Date parsed = format.parse(date.trim());
+                    if (parsed != null) {
+                        metadata.put("dateTaken", parsed.getTime());
+                    }
+                } catch (ParseException e) {
+                    Log.d(getClass().getName(), "unknown date format: " + date);
+                }
+            }
+
+            float[] latLong = new float[2];
+            if (exif.getLatLong(latLong)) {
+                metadata.put("latitude", latLong[0]);
+                metadata.put("longitude", latLong[1]);
+            }
+        }
+
+        return metadata;
+    }
+
+    private static void putLong(@NonNull JSONObject object, @NonNull String name, @Nullable String value) throws JSONException {
+        if (value == null) {
+            return;
+        }
+
+        try {
+            object.put(name, Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            Log.d(SafMediastore.class.getName(), "not a number: " + name + " = " + value);
+        }
+    }
+
+    private synchronized @NonNull MetadataCache metadataCache() {
+        if (metadataCache == null) {
+            metadataCache = new MetadataCache(
+                    cordovaInterface.getContext(),
+                    preferences.getInteger("SafMediastoreMetadataCacheEntries", 10000)
+            );
+        }
+
+        return metadataCache;
+    }
+
+    /**
+     * Streams a document, or length bytes of it starting at offset, through the requested digests
+     * without copying it to JS. Reads go through one reused direct buffer per worker thread.
+     */
+    private @NonNull JSONObject hashDocument(@NonNull Uri uri, @Nullable JSONArray algorithms, long offset, long length, @NonNull CancellationSignal signal) throws IOException, JSONException, NoSuchAlgorithmException {
+        if (algorithms == null || algorithms.length() == 0) {
+            algorithms = new JSONArray().put("SHA-256");
+        }
+
+        String[] names = new String[algorithms.length()];
+        MessageDigest[] digests = new MessageDigest[names.length];
+        CRC32[] checksums = new CRC32[names.length];
+
+        for (int i = 0; i < names.length; i++) {
+            names[i] = algorithms.getString(i).trim();
+
+            if (names[i].equalsIgnoreCase("CRC32")) {
+                checksums[i] = new CRC32();
+            } else {
+                digests[i] = MessageDigest.getInstance(names[i]);
+            }
+        }
+
+        ParcelFileDescriptor fileDescriptor = cordovaInterface.getContext().getContentResolver().openFileDescriptor(uri, "r", signal);
+        if (fileDescriptor == null) {
+            throw new FileNotFoundException("Could not open file: " + uri);
+        }
+
+        long hashed = 0;
+
+        try (FileInputStream inputStream = new ParcelFileDescriptor.AutoCloseInputStream(fileDescriptor)) {
+            FileChannel channel = inputStream.getChannel();
+            ByteBuffer buffer = HASH_BUFFERS.get();
+
+            if (offset > 0) {
+                try {
+                    channel.position(offset);
+                } catch (IOException e) {
+                    // pipes and sockets cannot seek, read past the skipped part instead
+                    long skipped = 0;
+                    while (skipped < offset) {
+                        buffer.clear();
+                        buffer.limit((int) Math.min(buffer.capacity(), offset - skipped));
+
+                        int read = channel.read(buffer);
+                        if (read < 0) {
+                            break;
+                        }
+
+                        skipped += read;
+                    }
+                }
+            }
+
+            while (length < 0 || hashed < length) {
+                signal.throwIfCanceled();
+
+                buffer.clear();
+                if (length >= 0) {
+                    buffer.limit((int) Math.min(buffer.capacity(), length - hashed));
+                }
+
+                int read = channel.read(buffer);
+                if (read < 0) {
+                    break;
+                }
+
+                buffer.flip();
+                for (int i = 0; i < names.length; i++) {
+                    buffer.position(0);
+
+                    if (checksums[i] != null) {
+                        checksums[i].update(buffer);
+                    } else {
+                        digests[i].update(buffer);
+                    }
+                }
+
+                hashed += read;
+            }
+        }
+
+        JSONObject hashes = new JSONObject();
+        for (int i = 0; i < names.length; i++) {
+            if (checksums[i] != null) {
+                hashes.put(names[i], String.format("%08x", checksums[i].getValue()));
+            } else {
+                hashes.put(names[i], toHex(digests[i].digest()));
+            }
+        }
+
+        JSONObject result = new JSONObject();
+        result.put("uri", uri.toString());
+        result.put("size", hashed);
+        result.put("hashes", hashes);
+
+        return result;
+    }
+
+    private static @NonNull String toHex(@NonNull byte[] bytes) {
+        char[] digits = "0123456789abcdef".toCharArray();
+        char[] hex = new char[bytes.length * 2];
+
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = digits[(bytes[i] >> 4) & 0x0f];
+            hex[i * 2 + 1] = digits[bytes[i] & 0x0f];
+        }
+
+        return new String(hex);
+    }
+
+    private void cancel(@NonNull CordovaArgs args, @NonNull CallbackContext callbackContext) throws JSONException {
+        String operationId = args.getJSONObject(0).getString("operationId");
+
+        CancellationSignal signal;
+        synchronized (operations) {
+            signal = operations.get(operationId);
+        }
+
+        if (signal != null) {
+            signal.cancel();
+        }
+
+        JSONObject result = new JSONObject();
+        result.put("cancelled", signal != null);
+
+        sendResult(result, callbackContext);
+    }
+
+    /**
+     * Registers params.operationId for {@link #cancel}. Called on the bridge thread before the task
+     * is queued, so a cancel sent after the call always finds the operation.
+     */
+    private @NonNull CancellationSignal startOperation(@NonNull CordovaArgs args) {
+        CancellationSignal signal = new CancellationSignal();
+
+        String operationId = operationId(args);
+        if (!operationId.equals("")) {
+            synchronized (operations) {
+                operations.put(operationId, signal);
+            }
+        }
+
+        return signal;
+    }
+
+    private void finishOperation(@NonNull CordovaArgs args, @NonNull CancellationSignal signal) {
+        String operationId = operationId(args);
+        if (operationId.equals("")) {
+            return;
+        }
+
+        synchronized (operations) {
+            if (operations.get(operationId) == signal) {
+                operations.remove(operationId);
+            }
+        }
+    }
+
+    private static @NonNull String operationId(@NonNull CordovaArgs args) {
+        JSONObject params = args.optJSONObject(0);
+
+        return params == null ? "" : params.optString("operationId").trim();
+    }
+
+    private void getSchedulerStats(@NonNull CordovaArgs args, @NonNull CallbackContext callbackContext) throws JSONException {
+        JSONObject params = args.optJSONObject(0);
+
+        if (params != null && (params.has("ioThreads") || params.has("metadataThreads"))) {
+            JSONObject current = scheduler.stats();
+
+            scheduler.configure(
+                    params.optInt("ioThreads", current.getJSONObject(IoScheduler.Lane.bulk.name()).getInt("threads")),
+                    params.optInt("metadataThreads", current.getJSONObject(IoScheduler.Lane.metadata.name()).getInt("threads"))
+            );
+        }
+
+        sendResult(scheduler.stats(), callbackContext);
+    }
+
+    /**
+     * Builds the ordering key of a task: the URI it works on, followed by the path below it if one
+     * is given. Only the values are used, so every action on the same document gets the same key
+     * (and the same key as the batch actions, which use the plain URI) and runs in order with the
+     * others. Returns null if none of the parameters are set.
+     */
+    private static @Nullable String taskKey(@NonNull CordovaArgs args, @NonNull String... names) {
+        JSONObject params = args.optJSONObject(0);
+        if (params == null) {
+            return null;
+        }
+
+        StringBuilder key = new StringBuilder();
+        for (String name : names) {
+            String value = params.isNull(name) ? "" : params.optString(name).trim();
+            if (value.equals("")) {
+                continue;
+            }
+
+            if (key.length() > 0) {
+                key.append('/');
+            }
+
+            key.append(value.startsWith("/") && key.length() > 0 ? value.substring(1) : value);
+        }
+
+        return key.length() == 0 ? null : key.toString();
+    }
+
+    /**
+     * Builds the ordering key of an executeBatch call: the URI its operations work on, so that it
+     * runs in order with the single actions on that document or tree. Returns null if they work on
+     * different URIs or only on MediaStore paths, since one task can only hold one key.
+     */
+    private static @Nullable String batchKey(@NonNull CordovaArgs args) {
+        JSONObject params = args.optJSONObject(0);
+        JSONArray ops = params == null ? null : params.optJSONArray("ops");
+        if (ops == null) {
+            return null;
+        }
+
+        String key = null;
+        for (int i = 0; i < ops.length(); i++) {
+            JSONObject op = ops.optJSONObject(i);
+            String uri = op == null || op.isNull("uri") ? "" : op.optString("uri").trim();
+            if (uri.equals("")) {
+                continue;
+            }
+
+            if (key == null) {
+                key = uri;
+            } else if (!key.equals(uri)) {
+                return null;
+            }
+        }
+
+        return key;
+    }
+
+    private void startActivity(@NonNull Intent intent, @NonNull Action action, @NonNull CallbackContext callbackContext) {
+        short index = ++lastCallbackIndex;
+        callbackContexts.put(index, callbackContext);
+
+        cordovaInterface.startActivityForResult(
+                this,
+                intent,
+                (action.value << 16) | index
+        );
+    }
 
     private void fileInfo(@NonNull Uri uri, @NonNull CallbackContext callbackContext) throws JSONException {
-        DocumentFile file = DocumentFile.fromSingleUri(cordovaInterface.getContext(), uri);
-        if (file == null) {
+        JSONObject result = fileInfo(uri);
+        if (result == null) {
             onError("could not open file: " + uri, callbackContext);
             return;
         }
 
-        JSONObject result = new JSONObject();
-        result.put("uri", uri.toString());
-        result.put("name", file.getName());
-        result.put("lastModified", file.lastModified());
-        result.put("writable", file.canWrite());
+        sendResult(result, callbackContext);
+    }
+
+    /**
+     * Describes a document with a single projected query instead of one query per DocumentFile
+     * getter. Returns null if the provider does not know the URI.
+     */
+    private @Nullable JSONObject fileInfo(@NonNull Uri uri) throws JSONException {
+        ContentResolver contentResolver = cordovaInterface.getContext().getContentResolver();
+        boolean document = DocumentsContract.isDocumentUri(cordovaInterface.getContext(), uri);
+        boolean media = MediaStore.AUTHORITY.equals(uri.getAuthority());
+
+        String[] projection = document
+                ? DOCUMENT_INFO_PROJECTION
+                : (media ? MEDIA_INFO_PROJECTION : OPENABLE_INFO_PROJECTION);
+
+        try (Cursor cursor = contentResolver.query(uri, projection, null, null, null)) {
+            if (cursor == null || !cursor.moveToFirst()) {
+                return null;
+            }
+
+            if (document) {
+                return documentInfo(uri, cursor);
+            }
+
+            JSONObject result = new JSONObject();
+            result.put("uri", uri.toString());
+            result.put("name", cursor.getString(0));
+            result.put("writable", false);
+
+            if (media) {
+                result.put("lastModified", cursor.isNull(1) ? 0 : cursor.getLong(1) * 1000);
+                result.put("type", cursor.getString(2));
+                result.put("size", cursor.isNull(3) ? 0 : cursor.getLong(3));
+            } else {
+                result.put("lastModified", 0);
+                result.put("type", contentResolver.getType(uri));
+                result.put("size", cursor.isNull(1) ? 0 : cursor.getLong(1));
+            }
+
+            return result;
+        }
+    }
+
+    /**
+     * Builds a FileInfo from a row of DOCUMENT_INFO_PROJECTION, with the same semantics as the
+     * DocumentFile getters it replaces.
+     */
+    private @NonNull JSONObject documentInfo(@NonNull Uri uri, @NonNull Cursor cursor) throws JSONException {
+        String type = cursor.getString(3);
+        int flags = cursor.isNull(2) ? 0 : cursor.getInt(2);
+        boolean directory = DocumentsContract.Document.MIME_TYPE_DIR.equals(type);
+
+        boolean writable = false;
+        if (
+                type != null && !type.equals("") &&
+                        cordovaInterface.getContext().checkCallingOrSelfUriPermission(uri, Intent.FLAG_GRANT_WRITE_URI_PERMISSION) == PackageManager.PERMISSION_GRANTED
+        ) {
+            writable = (flags & DocumentsContract.Document.FLAG_SUPPORTS_DELETE) != 0 ||
+                    (directory && (flags & DocumentsContract.Document.FLAG_DIR_SUPPORTS_CREATE) != 0) ||
+                    (!directory && (flags & DocumentsContract.Document.FLAG_SUPPORTS_WRITE) != 0);
+        }
+
+        JSONObject result = new JSONObject();
+        result.put("uri", uri.toString());
+        result.put("name", cursor.getString(0));
+        result.put("lastModified", cursor.isNull(1) ? 0 : cursor.getLong(1));
+        result.put("writable", writable);
+
+        if (type != null && !type.equals("") && !directory) {
+            result.put("type", type);
+            result.put("size", cursor.isNull(4) ? 0 : cursor.getLong(4));
+        }
+
+        return result;
+    }
+
+    /**
+     * Describes the children of folder named in names[indexes], using one children query.
+     */
+    private void childInfos(@NonNull Uri treeUri, @NonNull String folder, @NonNull List<Integer> indexes, @NonNull String[] names, @NonNull JSONObject[] infos) throws JSONException {
+        String parentId = resolveDocumentId(treeUri, folder);
+        if (parentId == null) {
+            return;
+        }
+
+        HashMap<String, List<Integer>> wanted = new HashMap<>();
+        for (int index : indexes) {
+            List<Integer> list = wanted.get(names[index]);
+            if (list == null) {
+                list = new ArrayList<>();
+                wanted.put(names[index], list);
+            }
+
+            list.add(index);
+        }
+
+        try (
+                Cursor cursor = cordovaInterface.getContext().getContentResolver().query(
+                        DocumentsContract.buildChildDocumentsUriUsingTree(treeUri, parentId),
+                        DOCUMENT_INFO_PROJECTION,
+                        null,
+                        null,
+                        null
+                )
+        ) {
+            if (cursor == null) {
+                return;
+            }
+
+            while (cursor.moveToNext() && !wanted.isEmpty()) {
+                List<Integer> matches = wanted.remove(cursor.getString(0));
+                if (matches == null) {
+                    continue;
+                }
+
+                Uri uri = DocumentsContract.buildDocumentUriUsingTree(treeUri, cursor.getString(5));
+                JSONObject info = documentInfo(uri, cursor);
+
+                for (int index : matches) {
+                    infos[index] = info;
+                }
+            }
+        }
+    }
+
+    private @Nullable Uri resolveContentUri(@NonNull Uri uri, @NonNull String path) {
+        String documentId = resolveDocumentId(uri, path);
+        if (documentId == null) {
+            return null;
+        }
+
+        return DocumentsContract.buildDocumentUriUsingTree(uri, documentId);
+    }
+
+    private @NonNull String treeDocumentId(@NonNull Uri uri) {
+        return DocumentsContract.isDocumentUri(cordovaInterface.getContext(), uri)
+                ? DocumentsContract.getDocumentId(uri)
+                : DocumentsContract.getTreeDocumentId(uri);
+    }
+
+    private @Nullable String resolveDocumentId(@NonNull Uri treeUri, @NonNull String path) {
+        try {
+            return walkPath(treeUri, path, false);
+        } catch (IOException e) {
+            Log.d(getClass().getName(), e.getLocalizedMessage(), e);
+
+            return null;
+        }
+    }
+
+    /**
+     * Walks path below a tree URI and returns the document ID it points to, or null if it does not
+     * exist and create is false. Each segment costs one projected children query unless it is in
+     * the document ID cache; an ID that came from the cache is checked with one query before it is
+     * used for a lookup or returned. The check compares the display name too, since an opaque ID
+     * survives a rename or move outside the app. If a cached ID turned out to be stale the tree is
+     * evicted and walked again from the root.
+     */
+    private @Nullable String walkPath(@NonNull Uri treeUri, @NonNull String path, boolean create) throws IOException {
+        try {
+            return walkPath(treeUri, path, create, true);
+        } catch (IOException | RuntimeException e) {
+            if (!forgetTree(treeUri)) {
+                throw e;
+            }
+
+            return walkPath(treeUri, path, create, false);
+        }
+    }
+
+    private @Nullable String walkPath(@NonNull Uri treeUri, @NonNull String path, boolean create, boolean useCache) throws IOException {
+        String documentId = treeDocumentId(treeUri);
+        StringBuilder currentPath = new StringBuilder();
+        String lastCached = null;
+
+        for (String segment : path.split("/")) {
+            if (segment.equals("")) {
+                continue;
+            }
+
+            if (currentPath.length() > 0) {
+                currentPath.append("/");
+            }
+
+            currentPath.append(segment);
+
+            String key = treeUri + "\n" + currentPath;
+            String cached = useCache ? cachedDocumentId(key) : null;
+
+            if (cached != null) {
+                documentId = cached;
+                lastCached = segment;
+                continue;
+            }
+
+            // the cached parent may have been deleted, renamed or moved outside the app
+            if (lastCached != null && namedDocumentType(DocumentsContract.buildDocumentUriUsingTree(treeUri, documentId), lastCached) == null) {
+                throw new FileNotFoundException("Stale document ID: " + documentId);
+            }
+
+            lastCached = null;
+
+            Child child = findChild(treeUri, documentId, segment);
+
+            if (child == null) {
+                if (!create) {
+                    return null;
+                }
+
+                Uri folder = DocumentsContract.createDocument(
+                        cordovaInterface.getContext().getContentResolver(),
+                        DocumentsContract.buildDocumentUriUsingTree(treeUri, documentId),
+                        DocumentsContract.Document.MIME_TYPE_DIR,
+                        segment
+                );
+
+                if (folder == null) {
+                    throw new IOException("Could not create sub-folder: " + treeUri + "/" + currentPath);
+                }
+
+                documentId = DocumentsContract.getDocumentId(folder);
+            } else if (create && !child.isDirectory()) {
+                throw new IOException("Target is not a directory: " + treeUri + "/" + currentPath);
+            } else {
+                documentId = child.documentId;
+            }
+
+            rememberDocument(treeUri, key, documentId);
+        }
+
+        // the document may have been deleted, renamed or moved outside the app since it was cached
+        if (lastCached != null && namedDocumentType(DocumentsContract.buildDocumentUriUsingTree(treeUri, documentId), lastCached) == null) {
+            throw new FileNotFoundException("Stale document ID: " + documentId);
+        }
+
+        return documentId;
+    }
+
+    private @Nullable String cachedDocumentId(@NonNull String key) {
+        synchronized (documentIds) {
+            String documentId = documentIds.get(key);
+
+            if (documentId == null) {
+                documentIdMisses++;
+            } else {
+                documentIdHits++;
+            }
+
+            return documentId;
+        }
+    }
+
+    private void rememberDocument(@NonNull Uri treeUri, @NonNull String key, @NonNull String documentId) {
+        synchronized (documentIds) {
+            documentIds.put(key, documentId);
+
+            final String authority = treeUri.getAuthority();
+            if (authority == null || documentIdObservers.containsKey(authority) || !preferences.getBoolean("SafMediastoreCacheObserver", false)) {
+                return;
+            }
+
+            // providers notify on document and children URIs that need not be below the tree URI, see watch()
+            Uri observed = new Uri.Builder().scheme(ContentResolver.SCHEME_CONTENT).authority(authority).build();
+
+            ContentObserver observer = new ContentObserver(null) {
+                @Override
+                public void onChange(boolean selfChange) {
+                    onChange(selfChange, null);
+                }
+
+                @Override
+                public void onChange(boolean selfChange, @Nullable Uri uri) {
+                    String changed = uri == null ? null : changedDocumentId(uri);
+
+                    if (changed == null) {
+                        forgetAuthority(authority);
+                    } else {
+                        forgetDocument(authority, changed);
+                    }
+                }
+            };
+
+            try {
+                cordovaInterface.getContext().getContentResolver().registerContentObserver(observed, true, observer);
+                documentIdObservers.put(authority, observer);
+            } catch (SecurityException e) {
+                Log.d(getClass().getName(), "could not observe: " + observed, e);
+            }
+        }
+    }
+
+    /**
+     * Drops every cached entry of the trees of a provider.
+     */
+    private void forgetAuthority(@NonNull String authority) {
+        String prefix = ContentResolver.SCHEME_CONTENT + "://" + authority + "/";
+
+        synchronized (documentIds) {
+            Iterator<String> iterator = documentIds.keySet().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().startsWith(prefix)) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops every cached entry of a tree, returns whether there were any.
+     */
+    private boolean forgetTree(@NonNull Uri treeUri) {
+        String prefix = treeUri + "\n";
+        boolean removed = false;
+
+        synchronized (documentIds) {
+            Iterator<String> iterator = documentIds.keySet().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().startsWith(prefix)) {
+                    iterator.remove();
+                    removed = true;
+                }
+            }
+        }
+
+        return removed;
+    }
+
+    /**
+     * Drops a deleted or moved document and everything cached below it.
+     */
+    private void forgetDocument(@NonNull Uri uri) {
+        if (!DocumentsContract.isDocumentUri(cordovaInterface.getContext(), uri) || uri.getAuthority() == null) {
+            return;
+        }
+
+        forgetDocument(uri.getAuthority(), DocumentsContract.getDocumentId(uri));
+    }
+
+    private void forgetDocument(@NonNull String authority, @NonNull String documentId) {
+        String tree = ContentResolver.SCHEME_CONTENT + "://" + authority + "/";
+
+        synchronized (documentIds) {
+            List<String> prefixes = new ArrayList<>();
+            for (Map.Entry<String, String> entry : documentIds.entrySet()) {
+                if (entry.getValue().equals(documentId) && entry.getKey().startsWith(tree)) {
+                    prefixes.add(entry.getKey());
+                }
+            }
+
+            Iterator<String> iterator = documentIds.keySet().iterator();
+            while (iterator.hasNext()) {
+                String key = iterator.next();
+
+                for (String prefix : prefixes) {
+                    if (key.equals(prefix) || key.startsWith(prefix + "/")) {
+                        iterator.remove();
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    private @Nullable Child findChild(@NonNull Uri treeUri, @NonNull String parentId, @NonNull String name) {
+        try (
+                Cursor cursor = cordovaInterface.getContext().getContentResolver().query(
+                        DocumentsContract.buildChildDocumentsUriUsingTree(treeUri, parentId),
+                        new String[]{
+                                DocumentsContract.Document.COLUMN_DOCUMENT_ID,
+                                DocumentsContract.Document.COLUMN_DISPLAY_NAME,
+                                DocumentsContract.Document.COLUMN_MIME_TYPE
+                        },
+                        null,
+                        null,
+                        null
+                )
+        ) {
+            if (cursor == null) {
+                return null;
+            }
+
+            while (cursor.moveToNext()) {
+                if (name.equals(cursor.getString(1))) {
+                    return new Child(cursor.getString(0), cursor.getString(2));
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private static @NonNull Object[] cursorRow(@NonNull Cursor cursor) {
+        Object[] row = new Object[cursor.getColumnCount()];
+        for (int i = 0; i < row.length; i++) {
+            row[i] = cursorValue(cursor, i);
+        }
+
+        return row;
+    }
+
+    private static @Nullable Object cursorValue(@NonNull Cursor cursor, int index) {
+        switch (cursor.getType(index)) {
+            case Cursor.FIELD_TYPE_INTEGER:
+                return cursor.getLong(index);
+            case Cursor.FIELD_TYPE_FLOAT:
+                return cursor.getDouble(index);
+            case Cursor.FIELD_TYPE_STRING:
+                return cursor.getString(index);
+            default:
+                return null;
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static int compareValues(@Nullable Object a, @Nullable Object b) {
+        if (a == null || b == null) {
+            return a == null ? (b == null ? 0 : -1) : 1;
+        }
+
+        if (a instanceof String && b instanceof String) {
+            return ((String) a).compareToIgnoreCase((String) b);
+        }
+
+        if (a instanceof Number && b instanceof Number) {
+            return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+        }
+
+        if (a.getClass() == b.getClass() && a instanceof Comparable) {
+            return ((Comparable) a).compareTo(b);
+        }
+
+        return a.toString().compareTo(b.toString());
+    }
+
+    private @Nullable DocumentFile documentFile(@NonNull Uri uri) {
+        try {
+            return DocumentFile.fromTreeUri(cordovaInterface.getContext(), uri);
+        } catch (IllegalArgumentException e) {
+            return DocumentFile.fromSingleUri(cordovaInterface.getContext(), uri);
+        }
+    }
+
+    private static @NonNull String guessMimeType(@NonNull String path) {
+        String mimeType = MimeTypeMap.getSingleton().getMimeTypeFromExtension(path.substring(path.lastIndexOf('.') + 1));
+
+        return mimeType == null ? "*/*" : mimeType;
+    }
+
+    /**
+     * Resolves the target of a write from params.uri (a file or a folder plus params.path) or, without
+     * a uri, from params.path inside MediaStore, creating folders and the file as needed.
+     */
+    private @NonNull Target resolveTarget(@NonNull JSONObject params) throws JSONException, IOException {
+        String uriString = params.optString("uri").trim();
+        String path = params.optString("path").trim();
+        String mimeType = params.optString("mimeType").trim();
+
+        if (path.startsWith("/")) {
+            path = path.substring(1);
+        }
+
+        if (mimeType.equals("")) {
+            mimeType = guessMimeType(path);
+        }
+
+        if (uriString.equals("")) {
+            if (path.equals("")) {
+                throw new IllegalArgumentException("missing uri or path");
+            }
+
+            return insertMedia(path, mimeType);
+        }
+
+        DocumentFile file = documentFile(Uri.parse(uriString));
+        if (file == null) {
+            throw new FileNotFoundException("Could not open: " + uriString);
+        }
+
+        if (file.isFile()) {
+            return new Target(file.getUri(), false, false);
+        }
+
+        return createFile(file.getUri(), params.getString("path").trim(), mimeType);
+    }
+
+    /**
+     * Returns the document URI of the folder at path below treeUri, creating missing sub-folders.
+     */
+    private @NonNull Uri createFolders(@NonNull Uri treeUri, @NonNull String path) throws IOException {
+        String documentId = walkPath(treeUri, path, true);
+        if (documentId == null) {
+            throw new IOException("Could not create sub-folder: " + treeUri + "/" + path);
+        }
+
+        return DocumentsContract.buildDocumentUriUsingTree(treeUri, documentId);
+    }
+
+    private @NonNull Target createFile(@NonNull Uri treeUri, @NonNull String path, @NonNull String mimeType) throws IOException {
+        if (path.startsWith("/")) {
+            path = path.substring(1);
+        }
+
+        String folder;
+        String filename;
+
+        int index = path.lastIndexOf("/");
+        if (index > 0) {
+            folder = path.substring(0, index);
+            filename = path.substring(index + 1);
+        } else {
+            folder = "";
+            filename = path;
+        }
+
+        Uri parent = createFolders(treeUri, folder);
+        String key = treeUri + "\n" + (folder.equals("") ? filename : folder + "/" + filename);
+
+        String cached = cachedDocumentId(key);
+        if (cached != null) {
+            Uri uri = DocumentsContract.buildDocumentUriUsingTree(parent, cached);
+            String type = namedDocumentType(uri, filename);
+
+            if (type != null && !type.equals(DocumentsContract.Document.MIME_TYPE_DIR)) {
+                return new Target(uri, false, false);
+            }
+
+            forgetDocument(uri);
+        }
+
+        Child file = findChild(parent, DocumentsContract.getDocumentId(parent), filename);
+        if (file != null) {
+            if (file.isDirectory()) {
+                throw new IOException("Target is not a file: " + parent + "/" + filename);
+            }
+
+            rememberDocument(treeUri, key, file.documentId);
+
+            return new Target(DocumentsContract.buildDocumentUriUsingTree(parent, file.documentId), false, false);
+        }
+
+        Uri uri = DocumentsContract.createDocument(cordovaInterface.getContext().getContentResolver(), parent, mimeType, filename);
+        if (uri == null) {
+            throw new IOException("Could not create file: " + parent + "/" + filename);
+        }
+
+        rememberDocument(treeUri, key, DocumentsContract.getDocumentId(uri));
+
+        return new Target(uri, true, false);
+    }
+
+    /**
+     * Inserts a pending MediaStore row for fullPath. The row stays hidden until {@link #publish(Target)}.
+     */
+    private @NonNull Target insertMedia(@NonNull String fullPath, @NonNull String mimeType) throws IOException {
+        ContentValues contentValues = new ContentValues();
+        Uri volume = mediaValues(fullPath, mimeType, contentValues);
+
+        Uri uri = cordovaInterface.getContext().getContentResolver().insert(volume, contentValues);
+        if (uri == null) {
+            throw new IOException("Could not create file: " + fullPath);
+        }
+
+        return new Target(uri, true, true);
+    }
+
+    /**
+     * Fills the values of a new pending MediaStore row for fullPath and returns the collection it belongs in.
+     */
+    private static @NonNull Uri mediaValues(@NonNull String fullPath, @NonNull String mimeType, @NonNull ContentValues contentValues) {
+        contentValues.put(MediaStore.MediaColumns.MIME_TYPE, mimeType);
+
+        int index = fullPath.lastIndexOf("/");
+        if (index <= 0) {
+            contentValues.put(MediaStore.MediaColumns.DISPLAY_NAME, fullPath);
+
+            return MediaStore.Files.getContentUri(MediaStore.VOLUME_EXTERNAL);
+        }
+
+        contentValues.put(MediaStore.MediaColumns.RELATIVE_PATH, fullPath.substring(0, index));
+        contentValues.put(MediaStore.MediaColumns.DISPLAY_NAME, fullPath.substring(index + 1));
+        contentValues.put(MediaStore.MediaColumns.IS_PENDING, 1);
+
+        return mediaVolume(fullPath, mimeType);
+    }
+
+    private static @NonNull Uri mediaVolume(@NonNull String fullPath, @NonNull String mimeType) {
+        if (fullPath.startsWith("DCIM/") || fullPath.startsWith("Pictures/")) {
+            boolean isImage = mimeType.startsWith("image/");
+
+            if (!isImage && !mimeType.startsWith("video/")) {
+                throw new IllegalArgumentException("can only store image or video files in DCIM/ or Pictures/ folder");
+            }
+
+            return isImage
+                    ? MediaStore.Images.Media.getContentUri(MediaStore.VOLUME_EXTERNAL)
+                    : MediaStore.Video.Media.getContentUri(MediaStore.VOLUME_EXTERNAL);
+        }
+
+        if (fullPath.startsWith("Movies")) {
+            if (!mimeType.startsWith("video/")) {
+                throw new IllegalArgumentException("can only store video files in Movies/ folder");
+            }
+
+            return MediaStore.Video.Media.getContentUri(MediaStore.VOLUME_EXTERNAL);
+        }
+
+        if (
+                fullPath.startsWith("Alarms/") ||
+                        fullPath.startsWith("Audiobooks/") ||
+                        fullPath.startsWith("Music/") ||
+                        fullPath.startsWith("Notifications/") ||
+                        fullPath.startsWith("Podcasts/") ||
+                        fullPath.startsWith("Recordings/") ||
+                        fullPath.startsWith("Ringtones/")
+        ) {
+            if (!mimeType.startsWith("audio/")) {
+                throw new IllegalArgumentException("can only store audio files in Alarms/, Audiobooks/, Music/, Notifications/, Podcasts/, Recordings/ or Ringtones/ folder");
+            }
+
+            return MediaStore.Audio.Media.getContentUri(MediaStore.VOLUME_EXTERNAL);
+        }
+
+        if (fullPath.startsWith("Downloads/")) {
+            return MediaStore.Downloads.getContentUri(MediaStore.VOLUME_EXTERNAL);
+        }
+
+        return MediaStore.Files.getContentUri(MediaStore.VOLUME_EXTERNAL);
+    }
+
+    private static @NonNull Uri mediaCollection(@NonNull String collection) {
+        switch (collection) {
+            case "images":
+                return MediaStore.Images.Media.getContentUri(MediaStore.VOLUME_EXTERNAL);
+            case "video":
+                return MediaStore.Video.Media.getContentUri(MediaStore.VOLUME_EXTERNAL);
+            case "audio":
+                return MediaStore.Audio.Media.getContentUri(MediaStore.VOLUME_EXTERNAL);
+            case "downloads":
+                return MediaStore.Downloads.getContentUri(MediaStore.VOLUME_EXTERNAL);
+            case "files":
+            case "":
+                return MediaStore.Files.getContentUri(MediaStore.VOLUME_EXTERNAL);
+            default:
+                throw new IllegalArgumentException("unknown collection: " + collection);
+        }
+    }
+
+    private void publish(@NonNull Target target) {
+        if (!target.media) {
+            return;
+        }
+
+        ContentValues contentValues = new ContentValues();
+        contentValues.put(MediaStore.MediaColumns.IS_PENDING, 0);
+        cordovaInterface.getContext().getContentResolver().update(target.uri, contentValues, null, null);
+    }
 
-        if (file.isFile()) {
-            result.put("type", file.getType());
-            result.put("size", file.length());
+    private void discard(@NonNull Target target) throws FileNotFoundException {
+        if (!target.created) {
+            return;
         }
 
-        sendResult(result, callbackContext);
+        ContentResolver contentResolver = cordovaInterface.getContext().getContentResolver();
+        if (target.media) {
+            contentResolver.delete(target.uri, null, null);
+        } else {
+            DocumentsContract.deleteDocument(contentResolver, target.uri);
+            forgetDocument(target.uri);
+        }
     }
 
-    private @Nullable Uri resolveContentUri(@NonNull Uri uri, @NonNull String path) {
-        DocumentFile parent = DocumentFile.fromTreeUri(
-                cordovaInterface.getContext(),
-                uri
+    /**
+     * Where to write the new contents of target: target itself if this plugin just created it,
+     * otherwise a new sibling that {@link #replaceWith} moves over it once complete, so a failed
+     * write leaves the existing document as it was.
+     */
+    private @NonNull Target stagingTarget(@NonNull Uri treeUri, @NonNull String path, @NonNull Target target, @NonNull String mimeType) throws IOException {
+        if (target.created) {
+            return target;
+        }
+
+        int index = path.lastIndexOf('/');
+        Uri parent = createFolders(treeUri, index > 0 ? path.substring(0, index) : "");
+
+        Uri uri = DocumentsContract.createDocument(
+                cordovaInterface.getContext().getContentResolver(),
+                parent,
+                mimeType,
+                "." + path.substring(index + 1) + ".partial"
         );
-        if (parent == null || !parent.isDirectory()) {
-            return null;
+        if (uri == null) {
+            throw new IOException("Could not create file: " + parent + "/" + path.substring(index + 1));
         }
 
-        String[] subFolders;
-        String filename;
+        return new Target(uri, true, false);
+    }
 
-        int index = path.lastIndexOf("/");
-        if (index > 0) {
-            subFolders = path.substring(0, index).split("/");
-            filename = path.substring(index + 1);
-        } else {
-            subFolders = new String[]{};
-            filename = path;
+    /**
+     * Deletes target and renames staged to its name, unless they are the same document. Returns
+     * the URI of the result, which may differ from both.
+     */
+    private @NonNull Uri replaceWith(@NonNull Target target, @NonNull Target staged, @NonNull String path) throws IOException {
+        if (staged == target) {
+            return target.uri;
         }
 
-        StringBuilder currentPath = new StringBuilder();
-        for (String subFolder : subFolders) {
-            currentPath.append(subFolder);
+        deleteDocument(target.uri);
+        forgetDocument(target.uri);
+
+        Uri renamed = DocumentsContract.renameDocument(
+                cordovaInterface.getContext().getContentResolver(),
+                staged.uri,
+                path.substring(path.lastIndexOf('/') + 1)
+        );
+        if (renamed == null) {
+            throw new IOException("Could not rename " + staged.uri + " to " + path);
+        }
 
-            DocumentFile currentFile = parent.findFile(subFolder);
-            if (currentFile == null || !currentFile.isDirectory()) {
+        forgetDocument(staged.uri);
+
+        return renamed;
+    }
+
+    private boolean sameDocument(@NonNull Uri a, @NonNull Uri b) {
+        return DocumentsContract.isDocumentUri(cordovaInterface.getContext(), a) &&
+                DocumentsContract.isDocumentUri(cordovaInterface.getContext(), b) &&
+                a.getAuthority() != null &&
+                a.getAuthority().equals(b.getAuthority()) &&
+                DocumentsContract.getDocumentId(a).equals(DocumentsContract.getDocumentId(b));
+    }
+
+    private @Nullable String documentType(@NonNull Uri uri) {
+        try (
+                Cursor cursor = cordovaInterface.getContext().getContentResolver().query(
+                        uri,
+                        new String[]{DocumentsContract.Document.COLUMN_MIME_TYPE},
+                        null,
+                        null,
+                        null
+                )
+        ) {
+            if (cursor == null || !cursor.moveToFirst()) {
                 return null;
             }
 
-            parent = currentFile;
-            currentPath.append("/");
+            return cursor.getString(0);
+        } catch (Exception e) {
+            return null;
         }
+    }
+
+    /**
+     * Returns the MIME type of uri if it exists and is still called name, else null.
+     */
+    private @Nullable String namedDocumentType(@NonNull Uri uri, @NonNull String name) {
+        try (
+                Cursor cursor = cordovaInterface.getContext().getContentResolver().query(
+                        uri,
+                        new String[]{
+                                DocumentsContract.Document.COLUMN_MIME_TYPE,
+                                DocumentsContract.Document.COLUMN_DISPLAY_NAME
+                        },
+                        null,
+                        null,
+                        null
+                )
+        ) {
+            if (cursor == null || !cursor.moveToFirst() || !name.equals(cursor.getString(1))) {
+                return null;
+            }
 
-        DocumentFile target = parent.findFile(filename);
-        if (target == null) {
+            return cursor.getString(0);
+        } catch (Exception e) {
             return null;
         }
+    }
+
+    private int documentFlags(@NonNull Uri uri) {
+        try (
+                Cursor cursor = cordovaInterface.getContext().getContentResolver().query(
+                        uri,
+                        new String[]{DocumentsContract.Document.COLUMN_FLAGS},
+                        null,
+                        null,
+                        null
+                )
+        ) {
+            if (cursor == null || !cursor.moveToFirst() || cursor.isNull(0)) {
+                return 0;
+            }
 
-        return target.getUri();
+            return cursor.getInt(0);
+        } catch (Exception e) {
+            Log.d(getClass().getName(), "could not query flags: " + uri, e);
+
+            return 0;
+        }
     }
 
-    private void writeFile(@NonNull DocumentFile parent, @NonNull String path, @NonNull String data, @NonNull String mimeType, @NonNull CallbackContext callbackContext) throws JSONException, IOException {
-        String[] subFolders;
-        String filename;
+    private void deleteDocument(@NonNull Uri uri) throws FileNotFoundException {
+        ContentResolver contentResolver = cordovaInterface.getContext().getContentResolver();
 
-        int index = path.lastIndexOf("/");
-        if (index > 0) {
-            subFolders = path.substring(0, index).split("/");
-            filename = path.substring(index + 1);
+        if (DocumentsContract.isDocumentUri(cordovaInterface.getContext(), uri)) {
+            DocumentsContract.deleteDocument(contentResolver, uri);
         } else {
-            subFolders = new String[]{};
-            filename = path;
+            contentResolver.delete(uri, null, null);
         }
+    }
 
-        StringBuilder currentPath = new StringBuilder();
-        for (String subFolder : subFolders) {
-            currentPath.append(subFolder);
+    /**
+     * Copies one document into another without going through JS. Regular files on both ends are
+     * copied by the kernel through FileChannel.transferTo, anything else through a stream copy.
+     */
+    private long copyDocument(@NonNull Uri source, @NonNull Uri target, @Nullable Transfer transfer) throws IOException {
+        ContentResolver contentResolver = cordovaInterface.getContext().getContentResolver();
 
-            DocumentFile currentFile = parent.findFile(subFolder);
-            if (currentFile == null) {
-                currentFile = parent.createDirectory(subFolder);
+        CancellationSignal signal = transfer == null ? null : transfer.signal;
 
-                if (currentFile == null) {
-                    onError("Could not create sub-folder: " + parent.getUri() + "/" + currentPath, callbackContext);
-                    return;
+        ParcelFileDescriptor input = contentResolver.openFileDescriptor(source, "r", signal);
+        if (input == null) {
+            throw new FileNotFoundException("Could not open file: " + source);
+        }
+
+        try (FileInputStream inputStream = new ParcelFileDescriptor.AutoCloseInputStream(input)) {
+            ParcelFileDescriptor output = contentResolver.openFileDescriptor(target, "wt", signal);
+            if (output == null) {
+                throw new FileNotFoundException("Could not open file for writing: " + target);
+            }
+
+            try (FileOutputStream outputStream = new ParcelFileDescriptor.AutoCloseOutputStream(output)) {
+                long size = input.getStatSize();
+                if (transfer != null) {
+                    transfer.totalBytes = size;
                 }
-            } else if (!currentFile.isDirectory()) {
-                onError("Target is not a directory: " + parent.getUri() + "/" + currentPath, callbackContext);
-                return;
+
+                if (size < 0 || output.getStatSize() < 0) {
+                    return copy(inputStream, outputStream, transfer);
+                }
+
+                FileChannel inputChannel = inputStream.getChannel();
+                FileChannel outputChannel = outputStream.getChannel();
+
+                // transferred in slices so progress can be reported in between
+                long position = 0;
+                while (position < size) {
+                    if (signal != null) {
+                        signal.throwIfCanceled();
+                    }
+
+                    long count = inputChannel.transferTo(position, Math.min(size - position, TRANSFER_SLICE), outputChannel);
+                    if (count <= 0) {
+                        break;
+                    }
+
+                    position += count;
+
+                    if (transfer != null) {
+                        transfer.onProgress(position);
+                    }
+                }
+
+                // a short copy must fail, a move deletes the source after it
+                if (position < size) {
+                    throw new IOException("Source ended after " + position + " of " + size + " bytes: " + source);
+                }
+
+                if (transfer != null) {
+                    transfer.finish();
+                }
+
+                return position;
             }
+        }
+    }
+
+    private void writeFile(@NonNull DocumentFile parent, @NonNull String path, @NonNull InputStream data, @NonNull String mimeType, @Nullable Transfer transfer, @Nullable ImageTransform transform, @NonNull CallbackContext callbackContext) throws JSONException, IOException {
+        Target target = createFile(parent.getUri(), path, mimeType);
+
+        try {
+            writeData(target.uri, data, transfer, transform);
+        } catch (Throwable t) {
+            discard(target);
 
-            parent = currentFile;
-            currentPath.append("/");
+            throw t;
         }
 
-        DocumentFile file = parent.findFile(filename);
-        if (file == null) {
-            file = parent.createFile(mimeType, filename);
+        fileInfo(target.uri, callbackContext);
+    }
 
-            if (file == null) {
-                onError("Could not create file: " + parent.getUri() + "/" + currentPath + "/" + filename, callbackContext);
-                return;
-            }
-        } else if (!file.isFile()) {
-            onError("Target is not a file file: " + parent.getUri() + "/" + currentPath + "/" + filename, callbackContext);
-            return;
+    private void writeMedia(@NonNull String fullPath, @NonNull InputStream data, @NonNull String mimeType, @Nullable Transfer transfer, @Nullable ImageTransform transform, @NonNull CallbackContext callbackContext) throws IOException, JSONException {
+        Target target = insertMedia(fullPath, mimeType);
+
+        try {
+            writeData(target.uri, data, transfer, transform);
+        } catch (Throwable t) {
+            // a cancelled or failed export must not leave a pending row behind
+            discard(target);
+
+            throw t;
         }
 
-        writeFile(file, data, callbackContext);
+        publish(target);
+
+        fileInfo(target.uri, callbackContext);
     }
 
-    private void writeMedia(@NonNull String fullPath, @NonNull String data, @NonNull String mimeType, @NonNull CallbackContext callbackContext) throws IOException, JSONException {
-        ContentResolver contentResolver = cordovaInterface.getContext().getContentResolver();
+    private void writeFile(@NonNull DocumentFile file, @NonNull InputStream data, @Nullable Transfer transfer, @Nullable ImageTransform transform, @NonNull CallbackContext callbackContext) throws JSONException, IOException {
+        writeFile(file.getUri(), data, transfer, transform, callbackContext);
+    }
 
-        ContentValues contentValues = new ContentValues();
-        contentValues.put(MediaStore.MediaColumns.MIME_TYPE, mimeType);
+    private void writeFile(@NonNull final Uri uri, @NonNull final InputStream data, @Nullable Transfer transfer, @Nullable ImageTransform transform, @NonNull final CallbackContext callbackContext) throws IOException, JSONException {
+        writeData(uri, data, transfer, transform);
 
-        int index = fullPath.lastIndexOf("/");
-        Uri volume;
-        if (index > 0) {
-            contentValues.put(MediaStore.MediaColumns.RELATIVE_PATH, fullPath.substring(0, index));
-            contentValues.put(MediaStore.MediaColumns.DISPLAY_NAME, fullPath.substring(index + 1));
-            contentValues.put(MediaStore.MediaColumns.IS_PENDING, 1);
+        fileInfo(uri, callbackContext);
+    }
 
-            if (fullPath.startsWith("DCIM/") || fullPath.startsWith("Pictures/")) {
-                boolean isImage = mimeType.startsWith("image/");
+    /**
+     * Writes data as is, or re-encoded through transform. The image is encoded straight into the
+     * document. With kept EXIF it is encoded into a temp file first, since writing EXIF needs a
+     * seekable file and many providers refuse to open documents "rw", then copied.
+     */
+    private void writeData(@NonNull Uri uri, @NonNull InputStream data, @Nullable Transfer transfer, @Nullable ImageTransform transform) throws IOException {
+        if (transform == null) {
+            writeData(uri, data, transfer);
+            return;
+        }
 
-                if (!isImage && !mimeType.startsWith("video/")) {
-                    onError("can only store image or video files in DCIM/ or Pictures/ folder", callbackContext);
-                    return;
-                }
+        CancellationSignal signal = transfer == null ? null : transfer.signal;
 
-                volume = isImage
-                        ? MediaStore.Images.Media.getContentUri(MediaStore.VOLUME_EXTERNAL)
-                        : MediaStore.Video.Media.getContentUri(MediaStore.VOLUME_EXTERNAL);
-            } else if (fullPath.startsWith("Movies")) {
-                if (!mimeType.startsWith("video/")) {
-                    onError("can only store video files in Movies/ folder", callbackContext);
-                    return;
-                }
+        final byte[] bytes;
+        try (InputStream inputStream = data) {
+            bytes = readFully(inputStream, arrayLength(dataLength(inputStream), "data too large"), signal);
+        }
 
-                volume = MediaStore.Video.Media.getContentUri(MediaStore.VOLUME_EXTERNAL);
-            } else if (
-                    fullPath.startsWith("Alarms/") ||
-                            fullPath.startsWith("Audiobooks/") ||
-                            fullPath.startsWith("Music/") ||
-                            fullPath.startsWith("Notifications/") ||
-                            fullPath.startsWith("Podcasts/") ||
-                            fullPath.startsWith("Recordings/") ||
-                            fullPath.startsWith("Ringtones/")
-            ) {
-                if (!mimeType.startsWith("audio/")) {
-                    onError("can only store audio files in Alarms/, Audiobooks/, Music/, Notifications/, Podcasts/, Recordings/ or Ringtones/ folder", callbackContext);
-                    return;
+        ImageTransform.Source source = new ImageTransform.Source() {
+            @Override
+            public @NonNull InputStream open() {
+                return new ByteArrayInputStream(bytes);
+            }
+        };
+
+        if (!transform.keepExif) {
+            try (OutputStream outputStream = cordovaInterface.getContext().getContentResolver().openOutputStream(uri, "wt")) {
+                if (outputStream == null) {
+                    throw new FileNotFoundException("Could not open file for writing: " + uri);
                 }
 
-                volume = MediaStore.Audio.Media.getContentUri(MediaStore.VOLUME_EXTERNAL);
-            } else if (fullPath.startsWith("Downloads/")) {
-                volume = MediaStore.Downloads.getContentUri(MediaStore.VOLUME_EXTERNAL);
-            } else {
-                volume = MediaStore.Files.getContentUri(MediaStore.VOLUME_EXTERNAL);
+                transform.apply(source, outputStream, bitmaps(), signal);
             }
-        } else {
-            contentValues.put(MediaStore.MediaColumns.DISPLAY_NAME, fullPath);
-            volume = MediaStore.Files.getContentUri(MediaStore.VOLUME_EXTERNAL);
-        }
 
-        Uri uri = contentResolver.insert(volume, contentValues);
-        if (uri == null) {
-            onError("Could not create file: " + fullPath, callbackContext);
             return;
         }
 
+        File temp = File.createTempFile("saf_mediastore_image", "." + transform.format, cordovaInterface.getContext().getCacheDir());
+        try {
+            ImageTransform.Image image;
+            try (OutputStream outputStream = new FileOutputStream(temp)) {
+                image = transform.apply(source, outputStream, bitmaps(), signal);
+            }
+
+            transform.saveExif(image, new ExifInterface(temp));
+
+            writeData(uri, new FileInputStream(temp));
+        } finally {
+            if (!temp.delete()) {
+                Log.d(getClass().getName(), "could not delete: " + temp);
+            }
+        }
+    }
+
+    private long writeData(@NonNull Uri uri, @NonNull InputStream data) throws IOException {
+        return writeData(uri, data, null);
+    }
+
+    private long writeData(@NonNull Uri uri, @NonNull InputStream data, @Nullable Transfer transfer) throws IOException {
         try (
-                OutputStream outputStream = contentResolver.openOutputStream(uri, "wt");
-                InputStream inputStream = new Base64InputStream(
-                        new ByteArrayInputStream(data.getBytes()),
-                        Base64.DEFAULT
-                )
+                OutputStream outputStream = cordovaInterface.getContext().getContentResolver().openOutputStream(uri, "wt");
+                InputStream inputStream = data
         ) {
             if (outputStream == null) {
-                onError("Could not open file for writing: " + uri, callbackContext);
-                return;
+                throw new FileNotFoundException("Could not open file for writing: " + uri);
             }
 
-            FileUtils.copy(inputStream, outputStream);
+            return copy(inputStream, outputStream, transfer);
         }
+    }
 
-        contentValues.clear();
-        contentValues.put(MediaStore.MediaColumns.IS_PENDING, 0);
-        contentResolver.update(uri, contentValues, null, null);
+    private @NonNull Transfer transfer(@NonNull JSONObject params, @NonNull CancellationSignal signal, long totalBytes, @NonNull CallbackContext callbackContext) {
+        return new Transfer(
+                callbackContext,
+                signal,
+                params.optBoolean("progress"),
+                totalBytes,
+                Math.max(params.optLong("progressInterval", 250), 0)
+        );
+    }
 
-        fileInfo(uri, callbackContext);
+    private static long dataLength(@NonNull InputStream data) {
+        return data instanceof ByteArrayInputStream ? ((ByteArrayInputStream) data).available() : -1;
     }
 
-    private void writeFile(@NonNull DocumentFile file, @NonNull String data, @NonNull CallbackContext callbackContext) throws JSONException, IOException {
-        writeFile(file.getUri(), data, callbackContext);
+    private static long copy(@NonNull InputStream inputStream, @NonNull OutputStream outputStream, @Nullable Transfer transfer) throws IOException {
+        if (transfer == null) {
+            return FileUtils.copy(inputStream, outputStream);
+        }
+
+        long copied = FileUtils.copy(inputStream, outputStream, transfer.signal, DIRECT_EXECUTOR, transfer);
+        transfer.bytesTransferred = copied;
+        transfer.finish();
+
+        return copied;
     }
 
-    private void writeFile(@NonNull final Uri uri, @NonNull final String data, @NonNull final CallbackContext callbackContext) throws IOException, JSONException {
-        try (
-                OutputStream outputStream = cordovaInterface.getContext().getContentResolver().openOutputStream(uri, "wt");
-                InputStream inputStream = new Base64InputStream(
-                        new ByteArrayInputStream(data.getBytes()),
-                        Base64.DEFAULT
-                )
-        ) {
-            if (outputStream == null) {
-                onError("Could not open file for writing: " + uri, callbackContext);
-                return;
+    /**
+     * Opens the payload of a write call. Binary callers pass the bytes as a separate ArrayBuffer
+     * argument, older callers still send a Base64 string in params.data.
+     */
+    private @NonNull InputStream openData(@NonNull CordovaArgs args, @NonNull JSONObject params) throws JSONException {
+        return openData(args, params, 1);
+    }
+
+    private @NonNull InputStream openData(@NonNull CordovaArgs args, @NonNull JSONObject params, int index) throws JSONException {
+        if (params.has("dataIndex")) {
+            index = params.getInt("dataIndex");
+        } else if (params.has("data")) {
+            index = -1;
+        }
+
+        if (index > 0 && !args.isNull(index)) {
+            return new ByteArrayInputStream(args.getArrayBuffer(index));
+        }
+
+        return new Base64InputStream(
+                new ByteArrayInputStream(params.getString("data").trim().getBytes(StandardCharsets.US_ASCII)),
+                Base64.DEFAULT
+        );
+    }
+
+    /**
+     * Returns length as an int, or throws with message if that many bytes do not fit in one array.
+     */
+    private static int arrayLength(long length, @NonNull String message) throws IOException {
+        if (length > MAX_ARRAY_SIZE) {
+            throw new IOException(message + " (" + length + " bytes)");
+        }
+
+        return (int) length;
+    }
+
+    private static @NonNull byte[] readFully(@NonNull InputStream inputStream, int size) throws IOException {
+        return readFully(inputStream, size, null);
+    }
+
+    private static @NonNull byte[] readFully(@NonNull InputStream inputStream, int size, @Nullable CancellationSignal signal) throws IOException {
+        if (size <= 0) {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            FileUtils.copy(inputStream, outputStream, signal, null, null);
+
+            return outputStream.toByteArray();
+        }
+
+        byte[] data = new byte[size];
+        int offset = 0;
+        while (offset < size) {
+            if (signal != null) {
+                signal.throwIfCanceled();
+            }
+
+            int read = inputStream.read(data, offset, size - offset);
+            if (read < 0) {
+                return Arrays.copyOf(data, offset);
             }
 
-            FileUtils.copy(inputStream, outputStream);
+            offset += read;
         }
 
-        fileInfo(uri, callbackContext);
+        int next = inputStream.read();
+        if (next < 0) {
+            return data;
+        }
+
+        // the document grew since its size was queried
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream((int) Math.min(size * 2L, MAX_ARRAY_SIZE));
+        outputStream.write(data);
+        outputStream.write(next);
+        FileUtils.copy(inputStream, outputStream, signal, null, null);
+
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * Reads at most length bytes starting at offset, or everything after offset if length is negative.
+     * Uses positioned reads on the file descriptor and only falls back to skipping through a stream
+     * if the provider hands out a pipe or socket.
+     */
+    private @NonNull byte[] readRange(@NonNull Uri uri, long offset, int length) throws IOException {
+        ContentResolver contentResolver = cordovaInterface.getContext().getContentResolver();
+
+        ParcelFileDescriptor fileDescriptor = contentResolver.openFileDescriptor(uri, "r");
+        if (fileDescriptor == null) {
+            throw new FileNotFoundException("Could not open file: " + uri);
+        }
+
+        long size;
+        try (FileInputStream inputStream = new ParcelFileDescriptor.AutoCloseInputStream(fileDescriptor)) {
+            size = fileDescriptor.getStatSize();
+            if (size >= 0) {
+                if (offset >= size) {
+                    return new byte[0];
+                }
+
+                long remaining = size - offset;
+                if (length < 0 || length > remaining) {
+                    if (remaining > Integer.MAX_VALUE) {
+                        throw new IOException("Range too large: " + uri);
+                    }
+
+                    length = (int) remaining;
+                }
+
+                FileChannel channel = inputStream.getChannel();
+                ByteBuffer buffer = ByteBuffer.allocate(length);
+                try {
+                    while (buffer.hasRemaining()) {
+                        if (channel.read(buffer, offset + buffer.position()) < 0) {
+                            break;
+                        }
+                    }
+
+                    return buffer.position() == length ? buffer.array() : Arrays.copyOf(buffer.array(), buffer.position());
+                } catch (IOException e) {
+                    Log.d(getClass().getName(), "positioned read failed, skipping instead: " + uri, e);
+                }
+            }
+        }
+
+        try (InputStream inputStream = contentResolver.openInputStream(uri)) {
+            if (inputStream == null) {
+                throw new FileNotFoundException("Could not open file: " + uri);
+            }
+
+            long skipped = 0;
+            while (skipped < offset) {
+                long count = inputStream.skip(offset - skipped);
+                if (count <= 0) {
+                    if (inputStream.read() < 0) {
+                        return new byte[0];
+                    }
+
+                    count = 1;
+                }
+
+                skipped += count;
+            }
+
+            if (length < 0) {
+                return readFully(inputStream, 0);
+            }
+
+            // length comes from JS and may be far beyond the end, only what is there is allocated
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream((int) Math.min(length, size >= 0 ? size - offset : 64 * 1024));
+            byte[] buffer = new byte[Math.min(length, 64 * 1024)];
+            int read = 0;
+            while (read < length) {
+                int count = inputStream.read(buffer, 0, Math.min(buffer.length, length - read));
+                if (count < 0) {
+                    break;
+                }
+
+                outputStream.write(buffer, 0, count);
+                read += count;
+            }
+
+            return outputStream.toByteArray();
+        }
+    }
+
+    private void sendData(@NonNull byte[] data, @NonNull JSONObject info, boolean binary, @NonNull CallbackContext callbackContext) throws JSONException {
+        if (!binary) {
+            info.put("data", Base64.encodeToString(data, Base64.NO_WRAP));
+            sendResult(info, callbackContext);
+
+            return;
+        }
+
+        List<PluginResult> parts = new ArrayList<>(2);
+        parts.add(new PluginResult(PluginResult.Status.OK, data));
+        parts.add(new PluginResult(PluginResult.Status.OK, info));
+
+        sendResult(new PluginResult(PluginResult.Status.OK, parts), callbackContext);
     }
 
     private void onError(@NonNull Throwable throwable, @Nullable CallbackContext callbackContext) {
+        if (throwable instanceof OperationCanceledException) {
+            onError("Cancelled", callbackContext);
+            return;
+        }
+
         Log.w(getClass().getName(), throwable.getLocalizedMessage(), throwable);
 
         String message;
@@ -869,6 +6297,14 @@ public class SafMediastore extends CordovaPlugin implements ValueCallback<String
         });
     }
 
+    private void sendResult(@NonNull final PluginResult result, @NonNull final CallbackContext callbackContext) {
+        cordovaInterface.getActivity().runOnUiThread(new Runnable() {
+            public void run() {
+                callbackContext.sendPluginResult(result);
+            }
+        });
+    }
+
     private void sendError(@NonNull final String message, @Nullable final CallbackContext callbackContext) {
         cordovaInterface.getActivity().runOnUiThread(new Runnable() {
             public void run() {
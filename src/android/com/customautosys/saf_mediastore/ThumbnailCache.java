@@ -0,0 +1,250 @@
+package com.customautosys.saf_mediastore;
+
+import android.util.Log;
+import android.util.LruCache;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Encoded thumbnails kept in a memory LRU in front of a size-bounded directory in the app cache.
+ * <p>
+ * Keys are expected to contain everything the thumbnail depends on (document, lastModified, size,
+ * requested dimensions and format), so entries never need invalidation; stale ones just age out.
+ * The disk LRU order is the file modification time, which is refreshed on every hit.
+ * <p>
+ * Reads do not take the cache's lock: entries are written to a temp file and renamed into place,
+ * so a reader sees a whole entry or none, and one trimmed while being read stays readable through
+ * the open descriptor. Only puts, trims and the counters are serialized.
+ */
+class ThumbnailCache {
+    private final LruCache<String, byte[]> memory;
+    private final File directory;
+    private final long maxDiskBytes;
+    private long diskBytes = -1;
+    private long hits = 0;
+    private long misses = 0;
+
+    ThumbnailCache(@NonNull File directory, int maxMemoryBytes, long maxDiskBytes) {
+        this.directory = directory;
+        this.maxDiskBytes = maxDiskBytes;
+
+        memory = new LruCache<String, byte[]>(Math.max(maxMemoryBytes, 1)) {
+            @Override
+            protected int sizeOf(@NonNull String key, @NonNull byte[] value) {
+                return value.length;
+            }
+        };
+    }
+
+    public @Nullable byte[] get(@NonNull String key) {
+        byte[] data = memory.get(key);
+        if (data != null) {
+            synchronized (this) {
+                hits++;
+            }
+
+            return data;
+        }
+
+        File file = file(key);
+        if (!file.isFile()) {
+            miss();
+            return null;
+        }
+
+        try (FileInputStream inputStream = new FileInputStream(file)) {
+            // the size of the file that was opened, which a concurrent put may have replaced since
+            data = new byte[(int) inputStream.getChannel().size()];
+
+            int offset = 0;
+            while (offset < data.length) {
+                int read = inputStream.read(data, offset, data.length - offset);
+                if (read < 0) {
+                    throw new IOException("Truncated cache entry: " + file);
+                }
+
+                offset += read;
+            }
+        } catch (FileNotFoundException e) {
+            // trimmed since the check
+            miss();
+            return null;
+        } catch (IOException e) {
+            Log.d(ThumbnailCache.class.getName(), e.getLocalizedMessage(), e);
+
+            synchronized (this) {
+                long length = file.length();
+                if (delete(file) && diskBytes >= 0) {
+                    diskBytes -= length;
+                }
+
+                misses++;
+            }
+
+            return null;
+        }
+
+        //noinspection ResultOfMethodCallIgnored
+        file.setLastModified(System.currentTimeMillis());
+
+        synchronized (this) {
+            hits++;
+        }
+
+        memory.put(key, data);
+
+        return data;
+    }
+
+    public void put(@NonNull String key, @NonNull byte[] data) {
+        memory.put(key, data);
+
+        synchronized (this) {
+            if (data.length > maxDiskBytes || (!directory.isDirectory() && !directory.mkdirs())) {
+                return;
+            }
+
+            // counted before anything is written, so the listing does not already contain this entry
+            long size = diskSize();
+
+            File file = file(key);
+            File temp = new File(directory, file.getName() + ".tmp");
+
+            try (FileOutputStream outputStream = new FileOutputStream(temp)) {
+                outputStream.write(data);
+            } catch (IOException e) {
+                Log.d(ThumbnailCache.class.getName(), e.getLocalizedMessage(), e);
+
+                delete(temp);
+                return;
+            }
+
+            long previous = file.length();
+            if (!temp.renameTo(file)) {
+                delete(temp);
+                return;
+            }
+
+            diskBytes = size - previous + data.length;
+            trim();
+        }
+    }
+
+    public synchronized @NonNull JSONObject stats() throws JSONException {
+        JSONObject result = new JSONObject();
+        result.put("hits", hits);
+        result.put("misses", misses);
+        result.put("memoryBytes", memory.size());
+        result.put("diskBytes", diskSize());
+
+        return result;
+    }
+
+    public synchronized void clear() {
+        memory.evictAll();
+
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                delete(file);
+            }
+        }
+
+        diskBytes = 0;
+        hits = 0;
+        misses = 0;
+    }
+
+    private synchronized void miss() {
+        misses++;
+    }
+
+    private long diskSize() {
+        if (diskBytes < 0) {
+            diskBytes = 0;
+
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    diskBytes += file.length();
+                }
+            }
+        }
+
+        return diskBytes;
+    }
+
+    /**
+     * Deletes the least recently used files until the directory is back under 90% of its limit,
+     * so a full cache is not trimmed again on every put.
+     */
+    private void trim() {
+        if (diskBytes <= maxDiskBytes) {
+            return;
+        }
+
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+
+        long target = maxDiskBytes / 10 * 9;
+        for (File file : files) {
+            if (diskBytes <= target) {
+                break;
+            }
+
+            long length = file.length();
+            if (delete(file)) {
+                diskBytes -= length;
+            }
+        }
+    }
+
+    private @NonNull File file(@NonNull String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+
+            StringBuilder name = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                name.append(String.format("%02x", b));
+            }
+
+            return new File(directory, name.toString());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static boolean delete(@NonNull File file) {
+        if (file.delete()) {
+            return true;
+        }
+
+        Log.d(ThumbnailCache.class.getName(), "could not delete: " + file);
+
+        return false;
+    }
+}
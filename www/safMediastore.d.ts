@@ -7,9 +7,140 @@ interface FileInfo {
   size?: number;
 }
 
+type ListColumn = 'uri' | 'documentId' | 'name' | 'type' | 'size' | 'lastModified' | 'flags';
+
+interface FolderListing {
+  total: number;
+  offset: number;
+  count: number;
+  /** one array per requested column, all of length count */
+  columns: { [column in ListColumn]?: (string | number | null)[] };
+}
+
+type MediaColumn = 'uri' | 'id' | 'name' | 'type' | 'size' | 'dateModified' | 'dateAdded' | 'relativePath' | 'width' | 'height' | 'duration';
+
+interface MediaPage {
+  /** -1 if the provider does not report it */
+  total: number;
+  offset: number;
+  count: number;
+  /** one array per requested column, all of length count */
+  columns: { [column in MediaColumn]?: (string | number | null)[] };
+}
+
+interface ProgressEvent {
+  event: 'progress';
+  bytesTransferred: number;
+  /** -1 if unknown */
+  totalBytes: number;
+  /** bytes per second */
+  throughput: number;
+}
+
+interface ProgressOptions {
+  onProgress?: (event: ProgressEvent) => void;
+  /** minimum time between two progress events in milliseconds, 250 by default */
+  progressInterval?: number | null;
+}
+
+interface OperationOptions {
+  /** generated if not given */
+  operationId?: string | null;
+}
+
+/** a Promise that can be passed to cancel() through its operationId */
+type Operation<T> = Promise<T> & { operationId: string };
+
 interface FileData {
   data: string | ArrayBuffer | ArrayBufferView | Blob;
   mimeType?: string | null;
+  /** set to false to send data as a Base64 string instead of an ArrayBuffer */
+  binary?: boolean | null;
+}
+
+type MediaMetadataField = 'width' | 'height' | 'duration' | 'orientation' | 'mirrored' | 'dateTaken' | 'latitude' | 'longitude';
+
+interface MediaMetadata {
+  uri: string;
+  type: string;
+  /** true if the metadata came from the cache */
+  cached: boolean;
+  width?: number;
+  height?: number;
+  /** milliseconds */
+  duration?: number;
+  /** clockwise rotation in degrees needed to display the image or video upright */
+  orientation?: number;
+  /** images only: true if the image is also flipped horizontally after rotating by orientation */
+  mirrored?: boolean;
+  /** milliseconds since the epoch */
+  dateTaken?: number;
+  latitude?: number;
+  longitude?: number;
+}
+
+interface ImageTransformOptions {
+  /** 0 or missing for no limit */
+  maxWidth?: number | null;
+  maxHeight?: number | null;
+  /** follows mimeType by default, jpeg if that is not one of these */
+  format?: 'jpeg' | 'png' | 'webp' | null;
+  /** 0-100, 90 by default */
+  quality?: number | null;
+  keepExif?: boolean | null;
+}
+
+interface WriteStream {
+  handle: number;
+  uri: string;
+
+  write(data: FileData['data']): Promise<{ handle: number; written: number }>;
+
+  close(): Promise<FileInfo>;
+
+  abort(): Promise<void>;
+}
+
+type BatchOp =
+  | (FileData & { op: 'writeFile'; uri: string; path?: string | null })
+  | (FileData & { op: 'writeMedia'; path: string })
+  | { op: 'deleteFile'; uri: string }
+  | { op: 'createFolder'; uri: string; path: string };
+
+interface BatchResult {
+  ok: boolean;
+  skipped?: boolean;
+  error?: string;
+  result?: FileInfo | number | null;
+}
+
+interface TreeEntry {
+  uri: string;
+  documentId: string;
+  path: string;
+  name: string;
+  type: string;
+  size: number;
+  lastModified: number;
+}
+
+interface LaneStats {
+  threads: number;
+  active: number;
+  queued: number;
+  started: number;
+  averageWaitMs: number;
+  maxWaitMs: number;
+}
+
+type HashAlgorithm = 'SHA-256' | 'SHA-1' | 'SHA-512' | 'MD5' | 'CRC32' | string;
+
+interface FileHash {
+  uri: string;
+  /** number of bytes hashed */
+  size: number;
+  /** lowercase hex digest per requested algorithm */
+  hashes: { [algorithm: string]: string };
 }
 
 interface SafMediastore {
@@ -21,21 +152,179 @@ interface SafMediastore {
 
   openFile(params: { uri: string; title?: string | null }): Promise<void>;
 
-  readFile(params: { uri: string }): Promise<Blob>;
+  /** offset and fileSize are set for reads with offset or length */
+  readFile(params: OperationOptions & ProgressOptions & { uri: string; offset?: number | null; length?: number | null; binary?: boolean | null }): Operation<Blob & { offset?: number; fileSize?: number }>;
+
+  readStream(params: { uri: string; chunkSize?: number | null; prefetch?: number | null; binary?: boolean | null }): ReadableStream<Uint8Array>;
 
   saveFile(params: FileData & { folder?: string | null; filename?: string | null }): Promise<FileInfo>;
 
-  writeFile(params: FileData & { uri: string; path?: string | null }): Promise<FileInfo>;
+  writeFile(params: OperationOptions & FileData & ProgressOptions & { uri: string; path?: string | null; transform?: ImageTransformOptions | null }): Operation<FileInfo>;
+
+  writeMedia(params: OperationOptions & FileData & ProgressOptions & { path: string; transform?: ImageTransformOptions | null }): Operation<FileInfo>;
+
+  overwriteFile(params: OperationOptions & FileData & ProgressOptions & { uri: string }): Operation<FileInfo>;
+
+  writeAt(params: FileData & { uri: string; offset: number }): Promise<FileInfo>;
+
+  append(params: FileData & { uri: string }): Promise<FileInfo>;
 
-  writeMedia(params: FileData & { path: string }): Promise<FileInfo>;
+  openWriteStream(params: { uri?: string | null; path?: string | null; mimeType?: string | null; binary?: boolean | null }): Promise<WriteStream>;
 
-  overwriteFile(params: FileData & { uri: string }): Promise<FileInfo>;
+  writeChunk(params: FileData & { handle: number }): Promise<{ handle: number; written: number }>;
+
+  closeWriteStream(params: { handle: number; abort?: boolean | null }): Promise<FileInfo | void>;
+
+  copyFile(params: OperationOptions & ProgressOptions & { sourceUri: string; targetTreeUri: string; path?: string | null; mimeType?: string | null }): Operation<FileInfo>;
+
+  moveFile(params: OperationOptions & ProgressOptions & { sourceUri: string; targetTreeUri: string; path?: string | null; mimeType?: string | null; sourceParentUri?: string | null }): Operation<FileInfo>;
+
+  executeBatch(params: { ops: BatchOp[]; stopOnError?: boolean | null; binary?: boolean | null }): Promise<{ results: BatchResult[]; failed: number }>;
 
   deleteFile(params: { uri: string }): Promise<number>;
 
-  getInfo(params: { uri: string }): Promise<FileInfo>;
+  getInfo(params: { uri: string; path?: string | null }): Promise<FileInfo>;
+
+  getInfoBatch(params: { uris?: string[] | null; uri?: string | null; paths?: string[] | null }): Promise<(FileInfo | null)[]>;
+
+  listFolder(params: { uri: string; path?: string | null; offset?: number | null; limit?: number | null; sort?: string | null; columns?: ListColumn[] | null }): Promise<FolderListing>;
 
   getUri(params: { uri: string; path: string }): Promise<{ uri: string | null }>;
+
+  getMediaChanges(params?: {
+    collection?: 'images' | 'video' | 'audio' | 'downloads' | 'files' | null;
+    /** generation returned by the previous call, all rows are returned without it */
+    sinceGeneration?: string | null;
+  } | null): Promise<{
+    generation: string;
+    /** true if every row was returned because sinceGeneration was missing or no longer valid */
+    full: boolean;
+    count: number;
+    columns: { [column in MediaColumn]?: (string | number | null)[] };
+    /** IDs deleted since the previous call */
+    deleted: number[];
+  }>;
+
+  queryMedia(params?: {
+    collection?: 'images' | 'video' | 'audio' | 'downloads' | 'files' | null;
+    relativePath?: string | null;
+    includeSubfolders?: boolean | null;
+    mimeTypes?: string[] | null;
+    /** milliseconds since the epoch, compared with dateModified */
+    dateRange?: { from?: number | null; to?: number | null } | null;
+    sort?: string | null;
+    limit?: number | null;
+    offset?: number | null;
+    columns?: MediaColumn[] | null;
+  } | null): Promise<MediaPage>;
+
+  walkTree(params: OperationOptions & {
+    uri: string;
+    path?: string | null;
+    maxDepth?: number | null;
+    nameGlob?: string | null;
+    mimeTypes?: string[] | null;
+    modifiedAfter?: number | null;
+    includeFolders?: boolean | null;
+    batchSize?: number | null;
+    onEntries?: (entries: TreeEntry[]) => void;
+  }): Operation<{
+    count: number;
+    folders: number;
+    /** sub-folders that could not be listed, path is relative to the walked folder */
+    errors: { path: string; message: string }[];
+    elapsed: number;
+  }>;
+
+  /** exactly one of uri, treeUri with path, or mediaPath must be given */
+  exportFromPath(params: OperationOptions & ProgressOptions & {
+    /** absolute path or file:// URL inside the app's files or cache directories */
+    sourcePath: string;
+    uri?: string | null;
+    treeUri?: string | null;
+    path?: string | null;
+    mediaPath?: string | null;
+    mimeType?: string | null;
+  }): Operation<FileInfo>;
+
+  importToPath(params: OperationOptions & ProgressOptions & { uri: string; targetPath: string }): Operation<{ path: string; size: number }>;
+
+  syncFolder(params: OperationOptions & {
+    /** a directory of the app's private storage, or sourceTreeUri */
+    sourcePath?: string | null;
+    sourceTreeUri?: string | null;
+    sourceFolder?: string | null;
+    targetTreeUri: string;
+    targetPath?: string | null;
+    deleteExtraneous?: boolean | null;
+    compare?: 'size+mtime' | 'hash' | null;
+  }): Operation<{ copied: number; skipped: number; deleted: number; failed: number; bytes: number; errors: { path: string; error: string }[] }>;
+
+  zipFolder(params: OperationOptions & ProgressOptions & {
+    treeUri: string;
+    path?: string | null;
+    /** the archive file, or the folder to create it in if targetPath is given */
+    targetUri: string;
+    targetPath?: string | null;
+    /** 0-9, -1 (default) for the default compression */
+    level?: number | null;
+  }): Operation<FileInfo>;
+
+  unzip(params: OperationOptions & ProgressOptions & { archiveUri: string; targetTreeUri: string; path?: string | null }): Operation<{ files: number; folders: number }>;
+
+  hashFile(params: OperationOptions & { uri: string; algorithms?: HashAlgorithm[] | null; offset?: number | null; length?: number | null }): Operation<FileHash>;
+
+  hashFileBatch(params: OperationOptions & { uris: string[]; algorithms?: HashAlgorithm[] | null }): Operation<(FileHash | { uri: string; error: string })[]>;
+
+  getMediaMetadata(params: OperationOptions & { uris: string[]; fields?: MediaMetadataField[] | null }): Operation<(MediaMetadata | { uri: string; error: string })[]>;
+
+  cancel(operationId: string): Promise<boolean>;
+
+  getSchedulerStats(params?: { ioThreads?: number | null; metadataThreads?: number | null } | null): Promise<{ metadata: LaneStats; bulk: LaneStats }>;
+
+  getCacheStats(params?: { clear?: boolean | null } | null): Promise<{
+    hits: number;
+    misses: number;
+    size: number;
+    maxSize: number;
+    thumbnails: { hits: number; misses: number; memoryBytes: number; diskBytes: number };
+    bitmapPoolBytes: number;
+    metadata: { hits: number; misses: number; entries: number; maxEntries: number };
+  }>;
+
+  /** resolves to the watchId */
+  watch(params: {
+    /** folder to watch, if not given mediaCollection is watched */
+    uri?: string | null;
+    path?: string | null;
+    mediaCollection?: 'images' | 'video' | 'audio' | 'downloads' | 'files' | null;
+    /** true by default, fails for providers whose document IDs are not paths */
+    recursive?: boolean | null;
+    /** quiet time before changes are reported, 500 by default */
+    debounceMs?: number | null;
+    /** overflow is true if more than 1000 URIs changed and some were left out */
+    onChange: (uris: string[], overflow: boolean) => void;
+  }): Promise<number>;
+
+  unwatch(watchId: number): Promise<boolean>;
+
+  getWebUrl(params: { uri: string; type?: string | null }): Promise<string>;
+
+  revokeWebUrl(url: string): Promise<boolean>;
+
+  getThumbnail(params: OperationOptions & {
+    uri: string;
+    /** 256 by default */
+    width?: number | null;
+    /** same as width by default */
+    height?: number | null;
+    format?: 'jpeg' | 'png' | 'webp' | null;
+    /** 0-100, 80 by default */
+    quality?: number | null;
+    binary?: boolean | null;
+  }): Operation<Blob & { cached: boolean }>;
+
+  readImage(params: OperationOptions & ImageTransformOptions & { uri: string; binary?: boolean | null }): Operation<Blob & { width: number; height: number }>;
 }
 
 interface CordovaPlugins {
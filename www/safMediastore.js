@@ -13,6 +13,113 @@ module.exports = (function () {
     });
   }
 
+  // the Blob carries the type, anything else native code reported (e.g. offset and fileSize of a ranged read) is copied onto it
+  function toBlob(parts, info) {
+    const blob = new Blob(parts, {type: (info && info.type) || ''});
+
+    for (const key in info) {
+      if (key !== 'type' && key !== 'data') {
+        blob[key] = info[key];
+      }
+    }
+
+    return blob;
+  }
+
+  function wrapBlob(name, params, onEvent) {
+    return new Promise(function (resolve, reject) {
+      cordova.exec(
+        function (data, info) {
+          if (!(data instanceof ArrayBuffer) && typeof data.event === 'string') {
+            if (onEvent) {
+              onEvent(data);
+            }
+
+            return;
+          }
+
+          if (data instanceof ArrayBuffer) {
+            resolve(toBlob([data], info));
+            return;
+          }
+
+          resolve(toBlob([base64ToBytes(data.data)], data));
+        },
+        reject,
+        'SafMediastore',
+        name,
+        [params]
+      )
+    });
+  }
+
+  function wrapEvents(name, args, onEvent) {
+    return new Promise(function (resolve, reject) {
+      cordova.exec(
+        function (result) {
+          if (result && typeof result === 'object' && typeof result.event === 'string') {
+            if (onEvent) {
+              onEvent(result);
+            }
+
+            return;
+          }
+
+          resolve(result);
+        },
+        reject,
+        'SafMediastore',
+        name,
+        args
+      )
+    });
+  }
+
+  let lastOperationId = 0;
+
+  function withOperation(params, start) {
+    const operationId = params.operationId || Date.now().toString(36) + '-' + (++lastOperationId);
+    const promise = start({...params, operationId});
+    promise.operationId = operationId;
+
+    return promise;
+  }
+
+  // operations still preparing their data in JS, mapped to whether they were cancelled meanwhile
+  const preparing = new Map();
+
+  function prepareOperation(native) {
+    const operationId = native.operationId;
+    const args = prepareArgs(native);
+    preparing.set(operationId, false);
+
+    return args.then(function (args) {
+      const cancelled = preparing.get(operationId);
+      preparing.delete(operationId);
+
+      // nothing was started natively, so the cancel is honoured here
+      return cancelled ? Promise.reject('Cancelled') : args;
+    }, function (error) {
+      preparing.delete(operationId);
+
+      throw error;
+    });
+  }
+
+  function withProgress(params) {
+    if (!params || typeof params.onProgress !== 'function') {
+      return [params, null];
+    }
+
+    const {onProgress, ...native} = params;
+
+    return [{...native, progress: true}, function (event) {
+      if (event.event === 'progress') {
+        onProgress(event);
+      }
+    }];
+  }
+
   function isBase64(value) {
     try {
       var decoded = atob(value);
@@ -62,6 +169,215 @@ module.exports = (function () {
     });
   }
 
+  function readArrayBuffer(blob) {
+    return new Promise(function (resolve, reject) {
+      const reader = new FileReader();
+
+      reader.onerror = function () {
+        reject(reader.error);
+      };
+
+      reader.onload = function () {
+        resolve(reader.result);
+      };
+
+      reader.readAsArrayBuffer(blob);
+    });
+  }
+
+  function prepareArgs(params) {
+    if (params.binary === false) {
+      return prepareParams(params).then(function (prepared) {
+        return [prepared];
+      });
+    }
+
+    let data = params.data;
+    if (!data) {
+      throw new Error('missing data');
+    }
+
+    if (typeof data === 'string' && isBase64(data)) {
+      return Promise.resolve([params]);
+    }
+
+    if (!params.mimeType && data instanceof Blob) {
+      params.mimeType = data.type;
+    }
+
+    let buffer;
+    if (data instanceof ArrayBuffer) {
+      buffer = Promise.resolve(data);
+    } else if (ArrayBuffer.isView(data)) {
+      buffer = Promise.resolve(
+        data.byteOffset === 0 && data.byteLength === data.buffer.byteLength
+          ? data.buffer
+          : data.buffer.slice(data.byteOffset, data.byteOffset + data.byteLength)
+      );
+    } else if (typeof data === 'string') {
+      buffer = readArrayBuffer(new Blob([data]));
+    } else if (data instanceof Blob) {
+      buffer = readArrayBuffer(data);
+    } else {
+      throw new Error('invalid data type, expected (base64) string, Blob, ArrayBuffer or ArrayBufferView')
+    }
+
+    return buffer.then(function (data) {
+      const prepared = {...params};
+      delete prepared.data;
+
+      return [prepared, data];
+    });
+  }
+
+  function prepareBatch(params) {
+    return Promise.all((params.ops || []).map(function (op) {
+      if (op.data === undefined || op.data === null) {
+        return Promise.resolve([op]);
+      }
+
+      return prepareArgs({...op, binary: params.binary});
+    })).then(function (prepared) {
+      const args = [null];
+      const ops = prepared.map(function (entry) {
+        if (entry.length < 2) {
+          return entry[0];
+        }
+
+        args.push(entry[1]);
+
+        return {...entry[0], dataIndex: args.length - 1};
+      });
+
+      args[0] = {...params, ops};
+
+      return args;
+    });
+  }
+
+  function createWriter(stream, binary) {
+    let pending = Promise.resolve();
+
+    function enqueue(task) {
+      const next = pending.then(task);
+      pending = next.catch(function () {
+      });
+
+      return next;
+    }
+
+    return Object.freeze({
+      handle: stream.handle,
+      uri: stream.uri,
+      write(data) {
+        return enqueue(function () {
+          return prepareArgs({handle: stream.handle, data, binary}).then(function (args) {
+            return wrap('writeChunk', args);
+          });
+        });
+      },
+      close() {
+        return enqueue(function () {
+          return wrap('closeWriteStream', [{handle: stream.handle}]);
+        });
+      },
+      abort() {
+        return enqueue(function () {
+          return wrap('closeWriteStream', [{handle: stream.handle, abort: true}]);
+        });
+      }
+    });
+  }
+
+  function base64ToBytes(value) {
+    const decoded = atob(value);
+    const bytes = new Uint8Array(decoded.length);
+    for (let i = 0; i < decoded.length; i++) {
+      bytes[i] = decoded.charCodeAt(i);
+    }
+
+    return bytes;
+  }
+
+  function createReadStream(params) {
+    const prefetch = params.prefetch || 2;
+    let handle = null;
+    let done = false;
+    let waiting = null;
+
+    function wake() {
+      if (waiting) {
+        const resolve = waiting;
+        waiting = null;
+        resolve();
+      }
+    }
+
+    return new ReadableStream({
+      start(controller) {
+        return new Promise(function (resolve, reject) {
+          cordova.exec(
+            function (data, info) {
+              if (data instanceof ArrayBuffer) {
+                controller.enqueue(new Uint8Array(data));
+                wake();
+                return;
+              }
+
+              if (data.event === 'open') {
+                handle = data.handle;
+                resolve();
+                return;
+              }
+
+              if (data.event === 'data') {
+                controller.enqueue(base64ToBytes(data.data));
+                wake();
+                return;
+              }
+
+              if (data.event === 'end' && !done) {
+                done = true;
+                controller.close();
+                wake();
+              }
+            },
+            function (error) {
+              if (handle === null) {
+                reject(error);
+                return;
+              }
+
+              done = true;
+              controller.error(error);
+              wake();
+            },
+            'SafMediastore',
+            'readStream',
+            [{...params, prefetch, binary: params.binary !== false}]
+          );
+        });
+      },
+      pull() {
+        if (done) {
+          return;
+        }
+
+        // grant one more chunk and wait for something to arrive before being pulled again
+        return new Promise(function (resolve, reject) {
+          waiting = resolve;
+          wrap('readStreamAck', [{handle}]).catch(reject);
+        });
+      },
+      cancel() {
+        done = true;
+        wake();
+
+        return wrap('readStreamCancel', [{handle}]);
+      }
+    }, {highWaterMark: prefetch});
+  }
+
   let exports = {};
 
   return Object.freeze({
@@ -78,28 +394,93 @@ module.exports = (function () {
       return wrap('openFile', [params]);
     },
     readFile(params) {
-      return wrap('readFile', [params]).then(function (result) {
-        return new Blob([atob(result.data)], {type: result.type});
+      const [native, onEvent] = withProgress(params);
+
+      return withOperation(native, function (native) {
+        if (params.binary === false) {
+          return wrapEvents('readFile', [native], onEvent).then(function (result) {
+            return toBlob([base64ToBytes(result.data)], result);
+          });
+        }
+
+        return wrapBlob('readFile', {...native, binary: true}, onEvent);
       });
     },
+    readStream(params) {
+      return createReadStream(params);
+    },
     saveFile(params) {
-      return prepareParams(params).then(function (prepared) {
-        return wrap('saveFile', [prepared]);
+      return prepareArgs(params).then(function (args) {
+        return wrap('saveFile', args);
       });
     },
     writeFile(params) {
-      return prepareParams(params).then(function (prepared) {
-        return wrap('writeFile', [prepared]);
+      const [native, onEvent] = withProgress(params);
+
+      return withOperation(native, function (native) {
+        return prepareOperation(native).then(function (args) {
+          return wrapEvents('writeFile', args, onEvent);
+        });
       });
     },
     writeMedia(params) {
-      return prepareParams(params).then(function (prepared) {
-        return wrap('writeMedia', [prepared]);
+      const [native, onEvent] = withProgress(params);
+
+      return withOperation(native, function (native) {
+        return prepareOperation(native).then(function (args) {
+          return wrapEvents('writeMedia', args, onEvent);
+        });
       });
     },
     overwriteFile(params) {
-      return prepareParams(params).then(function (prepared) {
-        return wrap('overwriteFile', [prepared]);
+      const [native, onEvent] = withProgress(params);
+
+      return withOperation(native, function (native) {
+        return prepareOperation(native).then(function (args) {
+          return wrapEvents('overwriteFile', args, onEvent);
+        });
+      });
+    },
+    writeAt(params) {
+      return prepareArgs(params).then(function (args) {
+        return wrap('writeAt', args);
+      });
+    },
+    append(params) {
+      return prepareArgs(params).then(function (args) {
+        return wrap('append', args);
+      });
+    },
+    openWriteStream(params) {
+      return wrap('openWriteStream', [params]).then(function (stream) {
+        return createWriter(stream, params.binary);
+      });
+    },
+    writeChunk(params) {
+      return prepareArgs(params).then(function (args) {
+        return wrap('writeChunk', args);
+      });
+    },
+    closeWriteStream(params) {
+      return wrap('closeWriteStream', [params]);
+    },
+    copyFile(params) {
+      const [native, onEvent] = withProgress(params);
+
+      return withOperation(native, function (native) {
+        return wrapEvents('copyFile', [native], onEvent);
+      });
+    },
+    moveFile(params) {
+      const [native, onEvent] = withProgress(params);
+
+      return withOperation(native, function (native) {
+        return wrapEvents('moveFile', [native], onEvent);
+      });
+    },
+    executeBatch(params) {
+      return prepareBatch(params).then(function (args) {
+        return wrap('executeBatch', args);
       });
     },
     deleteFile(params) {
@@ -108,6 +489,136 @@ module.exports = (function () {
     getInfo(params) {
       return wrap('getInfo', [params]);
     },
+    listFolder(params) {
+      return wrap('listFolder', [params]);
+    },
+    watch(params) {
+      const {onChange, ...native} = params;
+
+      return wrapEvents('watch', [native], function (event) {
+        if (event.event === 'change' && onChange) {
+          onChange(event.uris, event.overflow);
+        }
+      }).then(function (result) {
+        return result.watchId;
+      });
+    },
+    unwatch(watchId) {
+      return wrap('unwatch', [{watchId}]).then(function (result) {
+        return result === 1;
+      });
+    },
+    getWebUrl(params) {
+      return wrap('getWebUrl', [params]).then(function (result) {
+        return result.url;
+      });
+    },
+    revokeWebUrl(url) {
+      return wrap('revokeWebUrl', [{url}]).then(function (result) {
+        return result.revoked;
+      });
+    },
+    getThumbnail(params) {
+      return withOperation(params, function (native) {
+        return wrapBlob('getThumbnail', {...native, binary: params.binary !== false});
+      });
+    },
+    readImage(params) {
+      return withOperation(params, function (native) {
+        return wrapBlob('readImage', {...native, binary: params.binary !== false});
+      });
+    },
+    getMediaChanges(params) {
+      return wrap('getMediaChanges', [params || {}]);
+    },
+    queryMedia(params) {
+      return wrap('queryMedia', [params || {}]);
+    },
+    getCacheStats(params) {
+      return wrap('getCacheStats', [params || {}]);
+    },
+    getInfoBatch(params) {
+      return wrap('getInfoBatch', [params]).then(function (result) {
+        return result.results;
+      });
+    },
+    walkTree(params) {
+      const {onEntries, ...native} = params;
+
+      return withOperation(native, function (native) {
+        return wrapEvents('walkTree', [native], function (event) {
+          if (onEntries) {
+            onEntries(event.entries);
+          }
+        });
+      });
+    },
+    exportFromPath(params) {
+      const [native, onEvent] = withProgress(params);
+
+      return withOperation(native, function (native) {
+        return wrapEvents('exportFromPath', [native], onEvent);
+      });
+    },
+    importToPath(params) {
+      const [native, onEvent] = withProgress(params);
+
+      return withOperation(native, function (native) {
+        return wrapEvents('importToPath', [native], onEvent);
+      });
+    },
+    syncFolder(params) {
+      return withOperation(params, function (native) {
+        return wrap('syncFolder', [native]);
+      });
+    },
+    zipFolder(params) {
+      const [native, onEvent] = withProgress(params);
+
+      return withOperation(native, function (native) {
+        return wrapEvents('zipFolder', [native], onEvent);
+      });
+    },
+    unzip(params) {
+      const [native, onEvent] = withProgress(params);
+
+      return withOperation(native, function (native) {
+        return wrapEvents('unzip', [native], onEvent);
+      });
+    },
+    hashFile(params) {
+      return withOperation(params, function (native) {
+        return wrap('hashFile', [native]);
+      });
+    },
+    hashFileBatch(params) {
+      return withOperation(params, function (native) {
+        return wrap('hashFileBatch', [native]).then(function (result) {
+          return result.results;
+        });
+      });
+    },
+    getMediaMetadata(params) {
+      return withOperation(params, function (native) {
+        return wrap('getMediaMetadata', [native]).then(function (result) {
+          return result.results;
+        });
+      });
+    },
+    cancel(operationId) {
+      if (preparing.has(operationId)) {
+        preparing.set(operationId, true);
+
+        return Promise.resolve(true);
+      }
+
+      return wrap('cancel', [{operationId}]).then(function (result) {
+        return result.cancelled;
+      });
+    },
+    getSchedulerStats(params) {
+      return wrap('getSchedulerStats', [params || {}]);
+    },
     getUri(params) {
       return wrap('getUri', [params]);
     }